@@ -19,6 +19,7 @@ import grails.util.Environment
 import org.apache.log4j.Logger
 import org.codehaus.groovy.grails.commons.GrailsApplication
 import org.codehaus.groovy.grails.orm.hibernate.HibernateEventListeners
+import org.elasticsearch.common.xcontent.XContentType
 import org.grails.plugins.elasticsearch.AuditEventListener
 import org.grails.plugins.elasticsearch.ClientNodeFactoryBean
 import org.grails.plugins.elasticsearch.ElasticSearchContextHolder
@@ -26,7 +27,9 @@ import org.grails.plugins.elasticsearch.ElasticSearchHelper
 import org.grails.plugins.elasticsearch.conversion.CustomEditorRegistar
 import org.grails.plugins.elasticsearch.conversion.JSONDomainFactory
 import org.grails.plugins.elasticsearch.conversion.unmarshall.DomainClassUnmarshaller
+import org.grails.plugins.elasticsearch.index.IndexRequestJournal
 import org.grails.plugins.elasticsearch.index.IndexRequestQueue
+import org.grails.plugins.elasticsearch.search.QueryResultCache
 import org.grails.plugins.elasticsearch.mapping.SearchableClassMappingConfigurator
 import org.grails.plugins.elasticsearch.util.DomainDynamicMethodsUtils
 
@@ -97,11 +100,51 @@ class ElasticsearchGrailsPlugin {
             elasticSearchContextHolder = ref("elasticSearchContextHolder")
             bean.destroyMethod = 'shutdown'
         }
-        indexRequestQueue(IndexRequestQueue) {
+        if (esConfig.journal.enabled) {
+            indexRequestJournal(IndexRequestJournal) { bean ->
+                path = esConfig.journal.path as String
+                initialSize = esConfig.journal.size ?: 16 * 1024 * 1024
+                bean.initMethod = 'open'
+                bean.destroyMethod = 'close'
+            }
+        }
+        if (esConfig.search.cache.enabled) {
+            queryResultCache(QueryResultCache) {
+                maxSize = esConfig.search.cache.maxSize ?: 1000
+                ttl = esConfig.search.cache.ttl ?: 60000
+                refreshInterval = esConfig.search.cache.refreshInterval instanceof Number ? esConfig.search.cache.refreshInterval : 1000
+            }
+        }
+        indexRequestQueue(IndexRequestQueue) { bean ->
             elasticSearchContextHolder = ref("elasticSearchContextHolder")
             elasticSearchClient = ref("elasticSearchClient")
             jsonDomainFactory = ref("jsonDomainFactory")
             sessionFactory = ref("sessionFactory")
+            searchableClassMappingConfigurator = ref("searchableClassMappingConfigurator")
+            maxQueueSize = esConfig.indexQueue.maxSize ?: 0
+            maxQueueBytes = esConfig.indexQueue.maxBytes ?: 0
+            backpressurePolicy = IndexRequestQueue.BackpressurePolicy.valueOf((esConfig.indexQueue.policy ?: 'block').toString().toUpperCase())
+            blockTimeout = esConfig.indexQueue.blockTimeout ?: 30000
+            maxAttempts = esConfig.indexQueue.retry.maxAttempts ?: 10
+            retryInitialDelay = esConfig.indexQueue.retry.initialDelay ?: 100
+            retryMaxDelay = esConfig.indexQueue.retry.maxDelay ?: 60000
+            if (esConfig.indexQueue.retry.deadLetterHandler) {
+                deadLetterHandler = ref(esConfig.indexQueue.retry.deadLetterHandler as String)
+            }
+            circuitBreakerThreshold = esConfig.indexQueue.circuitBreaker.threshold ?: 5
+            circuitBreakerResetTimeout = esConfig.indexQueue.circuitBreaker.resetTimeout ?: 30000
+            // 0 disables these limits
+            maxBulkActions = esConfig.bulk.maxActions instanceof Number ? esConfig.bulk.maxActions : 1000
+            maxBulkBytes = esConfig.bulk.maxBytes instanceof Number ? esConfig.bulk.maxBytes : 5 * 1024 * 1024
+            maxConcurrentBulks = esConfig.bulk.maxConcurrent instanceof Number ? esConfig.bulk.maxConcurrent : 4
+            marshallingThreads = esConfig.bulk.marshallingThreads ?: 1
+            if (esConfig.journal.enabled) {
+                journal = ref("indexRequestJournal")
+            }
+            if (esConfig.search.cache.enabled) {
+                queryResultCache = ref("queryResultCache")
+            }
+            bean.destroyMethod = 'shutdown'
         }
         searchableClassMappingConfigurator(SearchableClassMappingConfigurator) { bean ->
             elasticSearchContext = ref("elasticSearchContextHolder")
@@ -115,6 +158,7 @@ class ElasticsearchGrailsPlugin {
             elasticSearchContextHolder = ref("elasticSearchContextHolder")
             elasticSearchClient = ref("elasticSearchClient")
             grailsApplication = ref("grailsApplication")
+            customEditorRegistrar = ref("customEditorRegistrar")
         }
         customEditorRegistrar(CustomEditorRegistar) {
             grailsApplication = ref("grailsApplication")
@@ -122,6 +166,8 @@ class ElasticsearchGrailsPlugin {
         jsonDomainFactory(JSONDomainFactory) {
             elasticSearchContextHolder = ref("elasticSearchContextHolder")
             grailsApplication = ref("grailsApplication")
+            streaming = esConfig.bulk.streamingMarshalling ?: false
+            sourceType = XContentType.valueOf((esConfig.bulk.sourceEncoding ?: 'json').toString().toUpperCase())
         }
         auditListener(AuditEventListener) {
             elasticSearchContextHolder = ref("elasticSearchContextHolder")
@@ -50,6 +50,134 @@ elasticSearch {
    *  at once. If this setting is not specified, 500 will be use by default.
    */
   maxBulkRequest = 500
+
+  /**
+   * Number of worker threads used when indexing or unindexing whole domain classes (ie elasticSearchService.index()).
+   * Each root class is split into identifier ranges which are processed concurrently, each worker using its own
+   * Hibernate session. Set it to the number of available cores to speed up a full reindex. Default to 1.
+   */
+  bulkIndexThreads = 1
+
+  /**
+   * Bounds the index requests held in memory, whether they are waiting to be sent or waiting for their bulk response.
+   * maxSize is a number of requests and maxBytes an estimated size of their documents. 0 means unbounded.
+   * The policy applied to the producers (ie the automatic indexing on save/update/delete) when the queue is full can be:
+   * - "block": wait for room, up to blockTimeout milliseconds, then throw an IndexException
+   * - "flush": send the pending requests right away on the caller thread
+   * - "reject": throw an IndexException
+   */
+  indexQueue.maxSize = 0
+  indexQueue.maxBytes = 0
+  indexQueue.policy = 'block'
+  indexQueue.blockTimeout = 30000
+
+  /**
+   * Failed index requests are retried with an exponential backoff (with jitter), starting at initialDelay milliseconds
+   * and capped by maxDelay milliseconds. After maxAttempts, the request is given up and handed to the bean named by
+   * deadLetterHandler (implementing org.grails.plugins.elasticsearch.index.DeadLetterHandler), or logged if there is none.
+   */
+  indexQueue.retry.maxAttempts = 10
+  indexQueue.retry.initialDelay = 100
+  indexQueue.retry.maxDelay = 60000
+
+  /**
+   * After threshold consecutive failed bulk requests, the circuit breaker opens: requests stay in the queue and the
+   * cluster health is checked every resetTimeout milliseconds, until it is no longer RED.
+   */
+  indexQueue.circuitBreaker.threshold = 5
+  indexQueue.circuitBreaker.resetTimeout = 30000
+
+  /**
+   * The pending requests are sent to ElasticSearch by bulks of at most maxActions actions and maxBytes bytes
+   * (estimated size of the sources), with at most maxConcurrent bulks waiting for their response at once.
+   * 0 means unbounded.
+   */
+  bulk.maxActions = 1000
+  bulk.maxBytes = 5 * 1024 * 1024
+  bulk.maxConcurrent = 4
+
+  /**
+   * Number of threads marshalling the documents of the pending requests, each using its own read-only Hibernate session.
+   * Requests flushed within an existing session (ie on a Hibernate flush) are always marshalled by the caller thread.
+   */
+  bulk.marshallingThreads = 1
+
+  /**
+   * Write the indexed documents straight into the request buffers while walking the domain instances, instead of
+   * building intermediate maps & lists. Buffers are recycled across documents. The documents are the same.
+   */
+  bulk.streamingMarshalling = false
+
+  /**
+   * Encoding of the indexed documents sent to ElasticSearch: "json" or "smile" (binary JSON, cheaper to encode & parse
+   * and smaller). The documents are searched and returned the same way whatever their encoding.
+   */
+  bulk.sourceEncoding = 'json'
+
+  /**
+   * Rebuild the domain instances of the search results only when they are accessed, instead of rebuilding the whole page
+   * right away. Can be set per search with the "lazy" parameter.
+   */
+  search.lazyResults = false
+
+  /**
+   * Search execution profiles. A profile may set:
+   * - searchType: "query_then_fetch", "dfs_query_then_fetch" (more accurate scoring on small indices, at the cost of an
+   *   extra round trip), "query_and_fetch" or "dfs_query_and_fetch"
+   * - explain: compute an explanation of the score of each hit
+   * - timeout: time limit of the search on each shard, ie "500ms" or "2s". Shards timing out return partial hits
+   * - preference: shards the search is sent to, ie "_local" or "_primary"
+   * - size: number of hits when the "size" parameter is not given, and maxSize: upper limit of the "size" parameter
+   * Unset settings default to query_then_fetch, no explain, no timeout and size 60.
+   * The profile used is the "profile" parameter of the search, or the "profile" mapping option of the searched class,
+   * or defaultProfile.
+   */
+  search.defaultProfile = 'default'
+  search.profiles = [
+          'default': [searchType: 'query_then_fetch', explain: false, size: 60],
+          accurate: [searchType: 'dfs_query_then_fetch'],
+          debug: [searchType: 'dfs_query_then_fetch', explain: true]
+  ]
+
+  /**
+   * How the domain instances of the search results are built, for the classes without a "hydrate" mapping option:
+   * "index" rebuilds them from the indexed documents, "database" only retrieves the ids of the hits and loads them
+   * from the database with a getAll() per class. Can be set per search with the "hydrate" parameter.
+   */
+  search.hydrate = 'index'
+
+  /**
+   * Scan searches (ie elasticSearchService.scroll()) fetch size hits per shard for each batch, and ElasticSearch keeps
+   * the scroll context alive for keepAlive between two batches. Both can be set per scroll.
+   */
+  search.scroll.size = 100
+  search.scroll.keepAlive = '1m'
+
+  /**
+   * Caches the responses of search & count requests in memory, keyed by the request: at most maxSize responses, each
+   * one for ttl milliseconds. The responses of an index are evicted when documents are written to it, and are not
+   * cached again for refreshInterval milliseconds (the time for the written documents to become searchable).
+   * Identical requests sent concurrently share the same response. Can be bypassed per search with "cache: false".
+   */
+  search.cache.enabled = false
+  search.cache.maxSize = 1000
+  search.cache.ttl = 60000
+  search.cache.refreshInterval = 1000
+
+  /**
+   * Number of threads rebuilding the results of the asynchronous searches (ie elasticSearchService.searchAsync()).
+   * Default to the number of available processors.
+   */
+  search.async.threads = null
+
+  /**
+   * Records the pending index & delete requests (class, id and operation only) in a memory-mapped file until they are
+   * acknowledged by ElasticSearch, so that the requests lost by a crash or a restart are re-sent at startup.
+   * size is the initial size of the file in bytes, it grows if needed.
+   */
+  journal.enabled = false
+  journal.path = "${userHome}/.grails/elasticsearch/${appName}/index-requests.journal"
+  journal.size = 16 * 1024 * 1024
   
   /**
    * Should component-mapped properties be unmarshalled. The default is true.
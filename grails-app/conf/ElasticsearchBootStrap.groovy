@@ -1,9 +1,12 @@
 class ElasticsearchBootStrap {
 
     def elasticSearchService
+    def indexRequestQueue
     def grailsApplication
 
     def init = { servletContext ->
+        // Re-send the requests left unacknowledged by the previous run
+        indexRequestQueue.replayJournal()
         if (grailsApplication.config.elasticSearch?.bulkIndexOnStartup) {
             log.debug "Performing bulk indexing."
             elasticSearchService.index()
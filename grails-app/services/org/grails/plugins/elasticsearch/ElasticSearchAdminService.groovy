@@ -2,17 +2,34 @@ package org.grails.plugins.elasticsearch
 
 import org.apache.log4j.Logger
 import org.elasticsearch.client.Client
+import org.elasticsearch.action.support.IgnoreIndices
 import org.elasticsearch.action.support.broadcast.BroadcastOperationResponse
 import org.elasticsearch.client.Requests
+import org.elasticsearch.cluster.metadata.MetaData
+import org.grails.plugins.elasticsearch.exception.IndexException
 import org.grails.plugins.elasticsearch.index.IndexRequestQueue
+import org.grails.plugins.elasticsearch.mapping.SearchableClassMapping
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
 
 class ElasticSearchAdminService {
     static transactional = false
     static LOG = Logger.getLogger(ElasticSearchAdminService.class)
+    private static final int ALIAS_ATTEMPTS = 3
 
     def elasticSearchHelper
     def elasticSearchContextHolder
     def indexRequestQueue
+    def queryResultCache
+    def searchableClassMappingConfigurator
+    def elasticSearchService
+
+    /**
+     * Indices being rebuilt.
+     */
+    private final Set<String> rebuilding = Collections.synchronizedSet(new HashSet<String>())
 
     /**
      * Explicitly refresh one or more index, making all operations performed since the last refresh available for search
@@ -40,6 +57,7 @@ class ElasticSearchAdminService {
                 LOG.info "Refreshed ${ indices ?: 'all' } indices"
             }
         }
+        invalidateQueryResults(indices)
     }
 
     /**
@@ -86,6 +104,9 @@ class ElasticSearchAdminService {
                 LOG.info "Deleted indices $indices"
             }
         }
+        // Deleted partitions are created again on demand
+        searchableClassMappingConfigurator.clearPartitions()
+        invalidateQueryResults(indices)
     }
 
     /**
@@ -116,4 +137,185 @@ class ElasticSearchAdminService {
             deleteIndex(toDelete.unique())
         }
     }
+
+    /**
+     * Rebuilds an index without downtime. A new versioned index is created with the current mappings, and the
+     * instances of its classes are loaded into it in the background, while live writes go to both indices.
+     * Once loaded, the new index replaces the previous one behind an alias of the same name, and the previous one is deleted.
+     * The first rebuild of an index which is not an alias yet has to delete it just before creating the alias,
+     * leaving it briefly missing for searches. Only the indices of classes which are not partitioned can be rebuilt.
+     * @param index The index to rebuild.
+     * @return A Future completed with the name of the new index once it has replaced the previous one.
+     */
+    public Future<String> rebuildIndex(String index) {
+        List<SearchableClassMapping> mappings = elasticSearchContextHolder.mapping.values().findAll {
+            it.root && it.indexName == index
+        } as List
+        if (mappings.any { it.partitioned }) {
+            // The partitions are not rebuilt: the alias would have to move from all of them at once
+            throw new IllegalArgumentException("Index [${index}] is partitioned by time and cannot be rebuilt.")
+        }
+        if (!mappings) {
+            throw new IllegalArgumentException("No root searchable class is mapped in index [${index}].")
+        }
+        if (!rebuilding.add(index)) {
+            throw new IllegalStateException("Index [${index}] is already being rebuilt.")
+        }
+        String newIndex = "${index}_v${System.currentTimeMillis()}"
+        FutureTask<String> task = new FutureTask<String>({
+            try {
+                doRebuildIndex(index, newIndex, mappings)
+            } finally {
+                rebuilding.remove(index)
+            }
+        } as Callable)
+        Thread thread = new Thread(task, "elasticsearch-rebuild-${index}")
+        thread.daemon = true
+        thread.start()
+        task
+    }
+
+    /**
+     * Rebuilds the index of one or more searchable classes without downtime, see rebuildIndex(String).
+     * @param searchableClass The searchable class whose index is rebuilt.
+     */
+    public Future<String> rebuildIndex(Class searchableClass) {
+        def scm = elasticSearchContextHolder.getMappingContextByType(searchableClass)
+        if (!scm) {
+            throw new IllegalArgumentException("${searchableClass} is not a searchable class.")
+        }
+        rebuildIndex(scm.indexName)
+    }
+
+    private String doRebuildIndex(String index, String newIndex, List<SearchableClassMapping> mappings) {
+        LOG.info "Rebuilding index ${index} into ${newIndex}"
+        List<String> previous
+        // Set once the previous index is deleted: the new index is then its only copy and is never discarded
+        boolean previousDeleted = false
+        try {
+            searchableClassMappingConfigurator.installIndex(newIndex, mappings)
+            indexRequestQueue.setWriteIndices(index, index, newIndex)
+            elasticSearchService.index(class: mappings*.domainClass*.clazz, into: newIndex)
+            // The writes made during the load must have reached the new index before it replaces the previous one
+            indexRequestQueue.executeRequests()
+            indexRequestQueue.waitComplete()
+            previous = swapIndex(index, newIndex) { previousDeleted = true }
+        } catch (Exception e) {
+            if (previousDeleted) {
+                indexRequestQueue.setWriteIndices(index, newIndex)
+                throw new IndexException("Index ${index} was deleted but its alias to ${newIndex} could not be created. " +
+                        "${newIndex} holds its documents and receives its writes, the alias has to be created manually", e)
+            }
+            discardIndex(index, newIndex)
+            throw new IndexException("Rebuild of index ${index} failed", e)
+        }
+        // The new index is live from now on: failures are only cleanup failures
+        indexRequestQueue.clearWriteIndices(index)
+        invalidateQueryResults([index])
+        deletePreviousIndices(index, previous)
+        LOG.info "Rebuilt index ${index} into ${newIndex}"
+        newIndex
+    }
+
+    /**
+     * Points the alias of an index to its rebuilt index, with a single atomic aliases request.
+     * An index created before the indices were aliased is concrete: it has to be deleted before its name can become an
+     * alias, in which case onPreviousDeleted is called right after the deletion.
+     * @return the indices the alias pointed to before, to delete once the new index is live.
+     */
+    private List<String> swapIndex(String index, String newIndex, Closure onPreviousDeleted) {
+        elasticSearchHelper.withElasticSearch { Client client ->
+            MetaData metaData = client.admin().cluster().prepareState().execute().actionGet().state.metaData
+            if (metaData.hasIndex(index)) {
+                // The writes go to the new index only from now on, so that none of them creates the index again
+                indexRequestQueue.setWriteIndices(index, newIndex)
+                indexRequestQueue.executeRequests()
+                indexRequestQueue.waitComplete()
+                client.admin().indices().delete(Requests.deleteIndexRequest(index)).actionGet()
+                onPreviousDeleted()
+                addAlias(client, newIndex, index)
+                return []
+            }
+            List<String> previous = metaData.concreteIndices([index] as String[]) as List
+            def aliases = client.admin().indices().prepareAliases()
+            previous.each { aliases.removeAlias(it, index) }
+            aliases.addAlias(newIndex, index).execute().actionGet()
+            previous
+        }
+    }
+
+    /**
+     * Creates the alias replacing a deleted index, retried as the searches fail until it exists.
+     */
+    private void addAlias(Client client, String index, String alias) {
+        int attempt = 0
+        while (true) {
+            try {
+                client.admin().indices().prepareAliases().addAlias(index, alias).execute().actionGet()
+                return
+            } catch (Exception e) {
+                if (++attempt >= ALIAS_ATTEMPTS) {
+                    throw e
+                }
+                LOG.warn "Unable to create alias ${alias} of index ${index}, retrying", e
+                Thread.sleep(1000L * attempt)
+            }
+        }
+    }
+
+    /**
+     * Deletes the indices replaced by a rebuilt index. A failure leaves an unused index behind, it is not rolled back.
+     */
+    private void deletePreviousIndices(String index, List<String> previous) {
+        elasticSearchHelper.withElasticSearch { Client client ->
+            previous.each {
+                try {
+                    client.admin().indices().delete(Requests.deleteIndexRequest(it)).actionGet()
+                } catch (Exception e) {
+                    LOG.warn "Unable to delete index ${it} replaced by the rebuild of ${index}, it has to be deleted manually", e
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the writes to the new index of a failed rebuild and deletes it, unless it already replaced the previous
+     * index: once the previous index was deleted or the alias points to the new index, the new index is the live one
+     * and keeps receiving the writes.
+     */
+    private void discardIndex(String index, String newIndex) {
+        try {
+            elasticSearchHelper.withElasticSearch { Client client ->
+                MetaData metaData = client.admin().cluster().prepareState().execute().actionGet().state.metaData
+                List<String> live = metaData.concreteIndices([index] as String[], IgnoreIndices.MISSING, true) as List
+                if (live && !live.contains(newIndex)) {
+                    indexRequestQueue.clearWriteIndices(index)
+                    client.admin().indices().delete(Requests.deleteIndexRequest(newIndex)).actionGet()
+                } else if (live) {
+                    indexRequestQueue.clearWriteIndices(index)
+                } else {
+                    indexRequestQueue.setWriteIndices(index, newIndex)
+                    LOG.error "Index ${index} was deleted, index ${newIndex} is kept as its only copy and receives its writes."
+                }
+            }
+        } catch (Exception e) {
+            indexRequestQueue.clearWriteIndices(index)
+            LOG.error "Unable to delete index ${newIndex} of a failed rebuild", e
+        }
+    }
+
+    /**
+     * Evicts the cached search responses of the given indices, if the cache is enabled.
+     * @param indices The indices whose documents changed. If null, evicts all responses.
+     */
+    private void invalidateQueryResults(Collection<String> indices) {
+        if (!queryResultCache) {
+            return
+        }
+        if (!indices) {
+            queryResultCache.invalidateAll()
+        } else {
+            queryResultCache.invalidate(indices)
+        }
+    }
 }
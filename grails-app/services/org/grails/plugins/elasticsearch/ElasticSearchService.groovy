@@ -26,20 +26,54 @@ import static org.elasticsearch.search.builder.SearchSourceBuilder.searchSource
 import static org.elasticsearch.index.query.QueryBuilders.queryString
 import org.apache.log4j.Logger
 import org.elasticsearch.action.search.SearchRequest
+import org.elasticsearch.action.search.SearchResponse
+import org.elasticsearch.action.search.MultiSearchRequest
+import org.elasticsearch.action.search.MultiSearchResponse
+import org.elasticsearch.ElasticSearchException
 import org.elasticsearch.search.builder.SearchSourceBuilder
 import org.elasticsearch.search.highlight.HighlightBuilder
 import org.elasticsearch.search.SearchHit
 import org.elasticsearch.search.sort.SortOrder
 import org.elasticsearch.action.count.CountRequest
 import org.elasticsearch.action.ActionRequest
+import org.elasticsearch.action.support.IgnoreIndices
 import org.elasticsearch.client.Requests
 import org.elasticsearch.action.support.broadcast.BroadcastOperationResponse
+import org.grails.plugins.elasticsearch.mapping.SearchableClassMapping
+import org.grails.plugins.elasticsearch.conversion.unmarshall.DomainClassUnmarshaller
+import org.grails.plugins.elasticsearch.exception.IndexException
+import org.grails.plugins.elasticsearch.search.QueryResultCache
+import org.grails.plugins.elasticsearch.search.QueryTemplate
+import org.grails.plugins.elasticsearch.search.ResultFuture
+import org.springframework.beans.factory.DisposableBean
+import org.elasticsearch.action.ActionListener
+import org.elasticsearch.action.count.CountResponse
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadFactory
 
-public class ElasticSearchService implements GrailsApplicationAware {
+public class ElasticSearchService implements GrailsApplicationAware, DisposableBean {
     static LOG = Logger.getLogger(ElasticSearchService.class)
 
     private static final int INDEX_REQUEST = 0
     private static final int DELETE_REQUEST = 1
+    private static final int RANGES_PER_THREAD = 4
+    // Delay (in milliseconds) between two warnings while a page waits for the bulk operation of the previous one
+    private static final int PAGE_WAIT_WARNING = 30000
+
+    /**
+     * Max number of partitions a search is restricted to, above which the whole alias of a partitioned class is searched.
+     */
+    private static final int MAX_SEARCHED_PARTITIONS = 100
+
+    /**
+     * Settings of the search profiles which do not set them.
+     */
+    private static final Map DEFAULT_PROFILE = [searchType: 'query_then_fetch', explain: false, size: 60].asImmutable()
 
     GrailsApplication grailsApplication
     def elasticSearchHelper
@@ -48,6 +82,12 @@ public class ElasticSearchService implements GrailsApplicationAware {
     def domainInstancesRebuilder
     def elasticSearchContextHolder
     def indexRequestQueue
+    def queryResultCache
+
+    /**
+     * Rebuilds the results of the asynchronous searches, created on the first one.
+     */
+    private ExecutorService asyncExecutor
 
     boolean transactional = false
 
@@ -86,6 +126,154 @@ public class ElasticSearchService implements GrailsApplicationAware {
         return doSearch(request, params)
     }
 
+    /**
+     * Sends several searches and counts at once, in a single multi-search request.
+     *
+     * Each search is a Map with:
+     * - query: the search query, a String or a Closure
+     * - params: the search parameters, as for search() or countHits()
+     * - count: true to only count the hits, as countHits()
+     *
+     * @param searches The searches to send
+     * @return The results of each search, in the same order: a Map as returned by search(), or an Integer for counts
+     */
+    public List multiSearch(List<Map> searches) {
+        MultiSearchRequest request = new MultiSearchRequest()
+        for (Map search : searches) {
+            Map params = search.params ?: [:]
+            request.add(search.count ? buildCountSearchRequest(search.query, params) : buildSearchRequest(search.query, params))
+        }
+        return doMultiSearch(request, searches)
+    }
+
+    /**
+     * Asynchronously returns the number of hits for a query.
+     *
+     * @param params Search parameters
+     * @param query Query closure
+     * @return A ResultFuture of the number of hits
+     */
+    public ResultFuture<Integer> countHitsAsync(Map params, Closure query) {
+        CountRequest request = buildCountRequest(query, params)
+        return doCountAsync(request, params)
+    }
+
+    /**
+     * Alias for the countHitsAsync(Map params, Closure query) signature.
+     */
+    public ResultFuture<Integer> countHitsAsync(Closure query, Map params = [:]) {
+        return countHitsAsync(params, query)
+    }
+
+    /**
+     * Asynchronously returns the number of hits for a text query or a bound query template.
+     *
+     * @param query The search query, parsed by the Lucene Query Parser, or a QueryTemplate.Bound
+     * @param params Search parameters
+     * @return A ResultFuture of the number of hits
+     */
+    public ResultFuture<Integer> countHitsAsync(query, Map params = [:]) {
+        CountRequest request = buildCountRequest(query, params)
+        return doCountAsync(request, params)
+    }
+
+    /**
+     * Streams every hit of a query to a callback, using a scan search: only one batch of hits is held in memory at a
+     * time, whatever the number of hits. The hits are not sorted.
+     *
+     * @param params Search parameters
+     * @param query Query closure
+     * @param callback Called with each domain instance (or source Map with the asMap parameter), may return false to stop
+     * @return The number of hits passed to the callback
+     */
+    public long scroll(Map params, Closure query, Closure callback) {
+        SearchRequest request = buildScrollRequest(query, params)
+        return doScroll(request, params, callback)
+    }
+
+    /**
+     * Alias for the scroll(Map params, Closure query, Closure callback) signature.
+     */
+    public long scroll(Closure query, Closure callback) {
+        return scroll([:], query, callback)
+    }
+
+    /**
+     * Streams every hit of a text query to a callback, using a scan search.
+     *
+     * @param query The search query. Will be parsed by the Lucene Query Parser.
+     * @param params Search parameters
+     * @param callback Called with each domain instance (or source Map with the asMap parameter), may return false to stop
+     * @return The number of hits passed to the callback
+     */
+    public long scroll(String query, Map params, Closure callback) {
+        SearchRequest request = buildScrollRequest(query, params)
+        return doScroll(request, params, callback)
+    }
+
+    /**
+     * Alias for the scroll(String query, Map params, Closure callback) signature.
+     */
+    public long scroll(String query, Closure callback) {
+        return scroll(query, [:], callback)
+    }
+
+    /**
+     * Streams every hit of a query template bound to its parameters to a callback, using a scan search.
+     *
+     * @param query The bound query template, see QueryTemplate.bind()
+     * @param params Search parameters
+     * @param callback Called with each domain instance (or source Map with the asMap parameter), may return false to stop
+     * @return The number of hits passed to the callback
+     */
+    public long scroll(QueryTemplate.Bound query, Map params, Closure callback) {
+        SearchRequest request = buildScrollRequest(query, params)
+        return doScroll(request, params, callback)
+    }
+
+    /**
+     * Global search with a query template bound to its parameters.
+     *
+     * @param query The bound query template, see QueryTemplate.bind()
+     * @param params Search parameters
+     * @return A Map containing the search results
+     */
+    def search(QueryTemplate.Bound query, Map params = [:]) {
+        SearchRequest request = buildSearchRequest(query, params)
+        return doSearch(request, params)
+    }
+
+    /**
+     * Asynchronous global search using Query DSL builder: returns right away, without waiting for the response.
+     *
+     * @param params Search parameters
+     * @param query Query closure
+     * @return A ResultFuture of the Map of search results
+     */
+    public ResultFuture searchAsync(Map params, Closure query) {
+        SearchRequest request = buildSearchRequest(query, params)
+        return doSearchAsync(request, params)
+    }
+
+    /**
+     * Alias for the searchAsync(Map params, Closure query) signature.
+     */
+    public ResultFuture searchAsync(Closure query, Map params = [:]) {
+        return searchAsync(params, query)
+    }
+
+    /**
+     * Asynchronous global search with a text query or a bound query template.
+     *
+     * @param query The search query, parsed by the Lucene Query Parser, or a QueryTemplate.Bound
+     * @param params Search parameters
+     * @return A ResultFuture of the Map of search results
+     */
+    public ResultFuture searchAsync(query, Map params = [:]) {
+        SearchRequest request = buildSearchRequest(query, params)
+        return doSearchAsync(request, params)
+    }
+
     /**
      * Returns the number of hits for a peculiar query
      *
@@ -121,6 +309,18 @@ public class ElasticSearchService implements GrailsApplicationAware {
         return countHits(params, query)
     }
 
+    /**
+     * Returns the number of hits for a query template bound to its parameters
+     *
+     * @param query The bound query template, see QueryTemplate.bind()
+     * @param params
+     * @return An Integer representing the number of hits for the query
+     */
+    public Integer countHits(QueryTemplate.Bound query, Map params = [:]) {
+        CountRequest request = buildCountRequest(query, params)
+        return doCount(request, params)
+    }
+
     /**
      * Indexes all searchable instances of the specified class.
      * If call without arguments, index ALL searchable instances.
@@ -222,7 +422,9 @@ public class ElasticSearchService implements GrailsApplicationAware {
             mappings = elasticSearchContextHolder.mapping.values()
         }
         def maxRes = elasticSearchContextHolder.config.maxBulkRequest ?: 500
+        int threads = (elasticSearchContextHolder.config.bulkIndexThreads ?: 1) as int
 
+        List<Callable> tasks = []
         mappings.each { scm ->
             if (scm.root) {
                 if (operationType == INDEX_REQUEST) {
@@ -230,30 +432,147 @@ public class ElasticSearchService implements GrailsApplicationAware {
                 } else if (operationType == DELETE_REQUEST) {
                     LOG.debug("Deleting all instances of ${scm.domainClass}")
                 }
+                splitIdentifierRanges(scm, threads).each { range ->
+                    tasks << ({ doBulkRequest(scm, operationType, maxRes as int, range, options.into as String) } as Callable)
+                }
+            } else {
+                LOG.debug("${scm.domainClass.clazz} is not a root searchable class and has been ignored.")
+            }
+        }
+
+        if (threads <= 1 || tasks.size() <= 1) {
+            tasks*.call()
+            return
+        }
+
+        // Each range is processed by its own worker, with its own session, marshalling and bulk submission.
+        int count = 0
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()), { Runnable r ->
+            Thread thread = new Thread(r, "elasticsearch-bulk-${++count}")
+            thread.daemon = true
+            thread
+        } as ThreadFactory)
+        try {
+            for (Future future : executor.invokeAll(tasks)) {
+                try {
+                    future.get()
+                } catch (ExecutionException e) {
+                    throw new IndexException("Bulk operation failed", e.cause)
+                }
+            }
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    /**
+     * Splits the instances of a root searchable class into identifier ranges that can be processed concurrently.
+     * Only Long and Integer identifiers are split: a class with any other identifier type (ie String or UUID, which
+     * cannot be split into ranges of even size) is processed as a single range, by one worker.
+     * The last range is left open so instances created in the meantime are processed as well.
+     *
+     * @param scm The root class mapping
+     * @param threads Number of workers
+     * @return A list of [after: id, upTo: id] ranges, bounds being null when open
+     */
+    private List<Map> splitIdentifierRanges(SearchableClassMapping scm, int threads) {
+        def identifier = scm.domainClass.identifier
+        if (threads <= 1 || !(identifier.type in [Long, Long.TYPE, Integer, Integer.TYPE])) {
+            return [[after: null, upTo: null]]
+        }
+        def clazz = scm.domainClass.clazz
+        def bounds = clazz.withNewSession {
+            clazz.createCriteria().get {
+                projections {
+                    min(identifier.name)
+                    max(identifier.name)
+                }
+            }
+        }
+        if (bounds == null || bounds[0] == null) {
+            return []
+        }
+        def toIdentifierType = { long value -> identifier.type in [Integer, Integer.TYPE] ? (value as Integer) : (value as Long) }
+        long lowest = bounds[0] as long
+        long highest = bounds[1] as long
+        int nbRanges = threads * RANGES_PER_THREAD
+        long span = Math.max(1L, (long) ((highest - lowest) / nbRanges) + 1)
+
+        List<Map> ranges = []
+        for (long after = lowest - 1; after < highest; after += span) {
+            long upTo = after + span
+            ranges << [after: toIdentifierType(after), upTo: upTo >= highest ? null : toIdentifierType(upTo)]
+        }
+        ranges
+    }
 
-                // The index is splitted to avoid out of memory exception
-                def count = scm.domainClass.clazz.count() ?: 0
-                int nbRun = Math.ceil(count / maxRes)
-
-                scm.domainClass.clazz.withNewSession {session ->
-                    for(int i = 0; i < nbRun; i++) {
-                        scm.domainClass.clazz.withCriteria {
-                            firstResult(i * maxRes)
-                            maxResults(maxRes)
-                        }.each {
-                            if (operationType == INDEX_REQUEST) {
-                                indexRequestQueue.addIndexRequest(it)
-                            } else if (operationType == DELETE_REQUEST) {
-                                indexRequestQueue.addDeleteRequest(it)
-                            }
-                        }
-                        indexRequestQueue.executeRequests()
-                        session.clear()
+    /**
+     * Streams the instances of a root searchable class within an identifier range to ElasticSearch.
+     * The instances are read by keyset pages (id > last id of the previous page) ordered by identifier, so the cost
+     * of a page does not depend on how far into the table it is, unlike firstResult/maxResults offsets.
+     * Each page waits for the bulk operation of the previous one before being sent, which keeps the bulk requests
+     * flowing at the pace the cluster is actually absorbing.
+     * Runs in its own session, and marshalls the instances it has loaded itself.
+     *
+     * @param scm The root class mapping
+     * @param operationType The type of the operation (INDEX_REQUEST, DELETE_REQUEST)
+     * @param maxRes Number of instances per page
+     * @param range The [after: id, upTo: id] identifier range to process
+     * @param into The index to write into, or null for the index of the class
+     */
+    private void doBulkRequest(SearchableClassMapping scm, int operationType, int maxRes, Map range, String into) {
+        def clazz = scm.domainClass.clazz
+        def idName = scm.domainClass.identifier.name
+
+        clazz.withNewSession { session ->
+            def lastId = range.after
+            def upTo = range.upTo
+            def previousBatch = null
+            while (true) {
+                def page = clazz.withCriteria {
+                    if (lastId != null) {
+                        gt(idName, lastId)
                     }
+                    if (upTo != null) {
+                        le(idName, upTo)
+                    }
+                    order(idName, 'asc')
+                    maxResults(maxRes)
+                }
+                if (!page) {
+                    break
                 }
+                lastId = page[-1]."${idName}"
 
-            } else {
-                LOG.debug("${scm.domainClass.clazz} is not a root searchable class and has been ignored.")
+                awaitPreviousPage(previousBatch, clazz)
+                if (operationType == INDEX_REQUEST) {
+                    previousBatch = indexRequestQueue.executeRequests(page, [], session, into)
+                } else if (operationType == DELETE_REQUEST) {
+                    previousBatch = indexRequestQueue.executeRequests([], page, session, into)
+                }
+                session.clear()
+
+                if (page.size() < maxRes) {
+                    break
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the bulk operation of the previous page, however long it takes: the next page is only sent once the
+     * cluster absorbed the previous one, or the queue gave up or rescheduled its requests.
+     */
+    private void awaitPreviousPage(batch, Class clazz) {
+        if (batch == null) {
+            return
+        }
+        long start = System.currentTimeMillis()
+        while (!batch.complete) {
+            batch.waitComplete(PAGE_WAIT_WARNING)
+            if (!batch.complete) {
+                LOG.warn("Bulk operation of the previous page of ${clazz.name} not complete after " +
+                        "${System.currentTimeMillis() - start}ms, still waiting before sending the next page")
             }
         }
     }
@@ -281,6 +600,22 @@ public class ElasticSearchService implements GrailsApplicationAware {
         indexRequestQueue.executeRequests()
     }
 
+    /**
+     * Converts a query given to the search methods to a query of a request
+     *
+     * @param query A Closure written with the Query DSL, a bound QueryTemplate or a String parsed by the Lucene Query Parser
+     * @return The JSON query bytes, or a QueryBuilder
+     */
+    private toQuery(query) {
+        if (query instanceof Closure) {
+            return new GXContentBuilder().buildAsBytes(query)
+        }
+        if (query instanceof QueryTemplate.Bound) {
+            return query.bytes
+        }
+        return queryString(query)
+    }
+
     /**
      * Builds a count request
      * @param query
@@ -291,12 +626,8 @@ public class ElasticSearchService implements GrailsApplicationAware {
         CountRequest request = new CountRequest()
         this.resolveIndicesAndTypes(request, params)
 
-        // Handle the query, can either be a closure or a string
-        if (query instanceof Closure) {
-            request.query(new GXContentBuilder().buildAsBytes(query))
-        } else {
-            request.query(queryString(query))
-        }
+        // Handle the query, can either be a closure, a bound query template or a string
+        request.query(toQuery(query))
 
         return request
     }
@@ -310,25 +641,36 @@ public class ElasticSearchService implements GrailsApplicationAware {
      */
     private SearchRequest buildSearchRequest(query, Map params) {
         SearchRequest request = new SearchRequest()
-        request.searchType SearchType.DFS_QUERY_THEN_FETCH
 
         this.resolveIndicesAndTypes(request, params)
 
+        Map profile = resolveProfile(request, params)
+        request.searchType SearchType.fromString(profile.searchType as String)
+        if (profile.preference) {
+            request.preference(profile.preference as String)
+        }
+
         SearchSourceBuilder source = new SearchSourceBuilder()
 
         source.from(params.from ? params.from as int : 0)
-        source.size(params.size ? params.size as int : 60)
-        source.explain(params.explain ?: true)
+        int size = params.size ? params.size as int : profile.size as int
+        if (profile.maxSize && size > (profile.maxSize as int)) {
+            LOG.debug "Search size ${size} exceeds the maxSize of the profile, limited to ${profile.maxSize}."
+            size = profile.maxSize as int
+        }
+        source.size(size)
+        source.explain((params.explain != null ? params.explain : profile.explain) as boolean)
+        if (profile.timeout) {
+            source.timeout(profile.timeout as String)
+        }
         if (params.sort) {
             source.sort(params.sort, SortOrder.valueOf(params.order?.toUpperCase() ?: "ASC"))
         }
 
-        // Handle the query, can either be a closure or a string
-        if (query instanceof Closure) {
-            source.query(new GXContentBuilder().buildAsBytes(query))
-        } else {
-            source.query(queryString(query))
-        }
+        // Handle the query, can either be a closure, a bound query template or a string
+        source.query(toQuery(query))
+
+        applyProjection(source, request, params)
 
         // Handle highlighting
         if (params.highlight) {
@@ -345,6 +687,121 @@ public class ElasticSearchService implements GrailsApplicationAware {
         return request
     }
 
+    /**
+     * Sets the fields returned for each hit: only the id of the hits loaded from the database, else the projection
+     * given by the fields (stored fields) and include/exclude (source fields) parameters, or else the whole source.
+     */
+    private void applyProjection(SearchSourceBuilder source, SearchRequest request, Map params) {
+        if (!params.asMap && isHydratedFromDatabase(request, params)) {
+            source.noFields()
+            return
+        }
+        def toArray = { value -> value == null ? null : (value instanceof String ? [value] : value) as String[] }
+        if (params.fields) {
+            toArray(params.fields).each { source.field(it) }
+        }
+        if (params.include || params.exclude) {
+            if (!params.fields) {
+                // Only the partial field, not the whole source
+                source.noFields()
+            }
+            source.partialField(DomainClassUnmarshaller.PROJECTION_FIELD, toArray(params.include), toArray(params.exclude))
+        }
+    }
+
+    /**
+     * Resolves the search profile of a request: the profile parameter, or the profile mapped by the searched classes
+     * if they all have the same one, or the elasticSearch.search.defaultProfile setting.
+     *
+     * @return The settings of the profile, completed with the default settings
+     */
+    private Map resolveProfile(request, Map params) {
+        def searchConfig = elasticSearchContextHolder.config.search
+        def name = params.profile
+        if (!name && request.types()) {
+            def classProfiles = request.types().collect { type ->
+                elasticSearchContextHolder.findMappingContextByElasticType(type).profile
+            }.unique()
+            if (classProfiles.size() == 1) {
+                name = classProfiles[0]
+            }
+        }
+        name = name ?: searchConfig.defaultProfile ?: 'default'
+        def profile = searchConfig.profiles[name]
+        if (profile == null && name == 'default') {
+            profile = [:]
+        }
+        if (!(profile instanceof Map)) {
+            throw new IllegalArgumentException("Unknown search profile: ${name}")
+        }
+        return DEFAULT_PROFILE + profile
+    }
+
+    /**
+     * @return true if all the hits of the search request are loaded from the database, in which case their source is
+     * not needed
+     */
+    private boolean isHydratedFromDatabase(SearchRequest request, Map params) {
+        if (params.hydrate) {
+            if (!(params.hydrate in [SearchableClassMapping.HYDRATE_INDEX, SearchableClassMapping.HYDRATE_DATABASE])) {
+                throw new IllegalArgumentException("Unknown hydrate mode: ${params.hydrate}")
+            }
+            return params.hydrate == SearchableClassMapping.HYDRATE_DATABASE
+        }
+        def types = request.types()
+        return types && types.every { type ->
+            domainInstancesRebuilder.isHydratedFromDatabase(elasticSearchContextHolder.findMappingContextByElasticType(type), null)
+        }
+    }
+
+    /**
+     * Builds a search request which only counts the hits, to be sent in a multi-search request
+     *
+     * @param query The search query, whether a String or a Closure
+     * @param params The query parameters
+     * @return The SearchRequest instance
+     */
+    private SearchRequest buildCountSearchRequest(query, Map params) {
+        SearchRequest request = new SearchRequest()
+        request.searchType SearchType.COUNT
+        this.resolveIndicesAndTypes(request, params)
+
+        SearchSourceBuilder source = new SearchSourceBuilder()
+        // Handle the query, can either be a closure, a bound query template or a string
+        source.query(toQuery(query))
+        request.source source
+
+        return request
+    }
+
+    /**
+     * Builds a scan search request
+     *
+     * @param query The search query, whether a String or a Closure
+     * @param params The query parameters
+     * @return The SearchRequest instance
+     */
+    private SearchRequest buildScrollRequest(query, Map params) {
+        def scrollConfig = elasticSearchContextHolder.config.search.scroll
+        SearchRequest request = new SearchRequest()
+        request.searchType SearchType.SCAN
+        request.scroll((params.keepAlive ?: scrollConfig.keepAlive ?: '1m') as String)
+
+        this.resolveIndicesAndTypes(request, params)
+
+        SearchSourceBuilder source = new SearchSourceBuilder()
+        // The size of a scan search is the number of hits returned by each shard for each batch
+        source.size(params.size ? params.size as int : (scrollConfig.size ?: 100) as int)
+
+        // Handle the query, can either be a closure, a bound query template or a string
+        source.query(toQuery(query))
+
+        applyProjection(source, request, params)
+        request.source source
+
+        return request
+    }
+
     /**
      * Sets the indices & types properties on SearchRequest & CountRequest
      *
@@ -376,6 +833,20 @@ public class ElasticSearchService implements GrailsApplicationAware {
             request.indices("_all")
         }
 
+        // Handle the partitions: only the partitions of the searched period are searched, instead of the whole alias
+        if (params.since && params.indices) {
+            def until = params.until ?: new Date()
+            def partitioned = elasticSearchContextHolder.mapping.values().findAll { it.root && it.partitioned }
+            def indices = request.indices().collect { index ->
+                def scm = partitioned.find { it.indexName == index }
+                def partitions = scm?.getPartitionIndexNames(params.since, until)
+                partitions && partitions.size() <= MAX_SEARCHED_PARTITIONS ? partitions : [index]
+            }.flatten()
+            request.indices(indices as String[])
+            // The partitions of the period with no document were never created
+            request.ignoreIndices(IgnoreIndices.MISSING)
+        }
+
         // Handle the types. Each type must reference a Domain class for now, but we may consider to make it more
         // generic in the future to allow POGO/Map/Whatever indexing/searching
         if (params.types) {
@@ -413,6 +884,14 @@ public class ElasticSearchService implements GrailsApplicationAware {
             }
             request.types(types as String[])
         }
+
+        // Handle the routing: the request is only sent to the shards of the given routing values
+        if (params.routing != null) {
+            def routing = [params.routing].flatten().collect { value ->
+                value.respondsTo('ident') ? value.ident() : value
+            }
+            request.routing(routing*.toString() as String[])
+        }
     }
 
     /**
@@ -424,43 +903,235 @@ public class ElasticSearchService implements GrailsApplicationAware {
      */
     private doSearch(SearchRequest request, Map params) {
         elasticSearchHelper.withElasticSearch { Client client ->
-            def response = client.search(request).actionGet()
-            def searchHits = response.hits
-            def result = [:]
-            result.total = searchHits.totalHits
+            def response = withQueryResultCache(request, params) { client.search(request).actionGet() }
+            return buildSearchResults(response, params)
+        }
+    }
+
+    /**
+     * Builds the results of a search response
+     *
+     * @param response The SearchResponse
+     * @param params Search parameters
+     * @return A Map containing the search results
+     */
+    private Map buildSearchResults(SearchResponse response, Map params) {
+        def searchHits = response.hits
+        def result = [:]
+        result.total = searchHits.totalHits
 
-            LOG.debug "Search returned ${result.total ?: 0} result(s)."
+        LOG.debug "Search returned ${result.total ?: 0} result(s)."
 
-            // Convert the hits back to their initial type
-            result.searchResults = domainInstancesRebuilder.buildResults(searchHits)
+        // Convert the hits back to their initial type: loaded from the database in batches, or rebuilt from their
+        // source right away or when each result is first accessed. Or only return their source as maps.
+        def hydrate = params.hydrate ?: null
+        if (params.asMap) {
+            result.searchResults = domainInstancesRebuilder.buildMaps(searchHits)
+        } else if (domainInstancesRebuilder.hasHitsHydratedFromDatabase(searchHits, hydrate)) {
+            result.searchResults = domainInstancesRebuilder.buildResults(searchHits, hydrate)
+        } else {
+            def lazy = params.lazy != null ? params.lazy : elasticSearchContextHolder.config.search.lazyResults
+            result.searchResults = lazy ? domainInstancesRebuilder.buildLazyResults(searchHits) : domainInstancesRebuilder.buildResults(searchHits)
+        }
 
-            // Extract highlight information.
-            // Right now simply give away raw results...
-            if (params.highlight) {
-                def highlightResults = []
-                for (SearchHit hit: searchHits) {
-                    highlightResults << hit.highlightFields
+        // Extract highlight information.
+        // Right now simply give away raw results...
+        if (params.highlight) {
+            def highlightResults = []
+            for (SearchHit hit: searchHits) {
+                highlightResults << hit.highlightFields
+            }
+            result.highlight = highlightResults
+        }
+
+        LOG.debug "Adding score information to results."
+
+        //Extract score information
+        //Records a map from hits of (hit.id, hit.score) returned in 'scores'
+        if (params.score) {
+            def scoreResults = [:]
+            for (SearchHit hit: searchHits) {
+                if ( scoreResults[ hit.index + "." + hit.type ] == null ) {
+                    scoreResults[ hit.index + "." + hit.type ] = [:]
                 }
-                result.highlight = highlightResults
+                scoreResults[ hit.index + "." + hit.type ][ hit.id ] = hit.score
             }
+            result.scores = scoreResults
+        }
 
-            LOG.debug "Adding score information to results."
+        return result
+    }
+
+    /**
+     * Computes a multi-search request and builds the results of each search
+     *
+     * @param request The MultiSearchRequest to compute
+     * @param searches The searches of the request, with their parameters
+     * @return The results of each search, in order
+     */
+    private List doMultiSearch(MultiSearchRequest request, List<Map> searches) {
+        elasticSearchHelper.withElasticSearch { Client client ->
+            MultiSearchResponse response = client.multiSearch(request).actionGet()
+            def results = []
+            response.responses.eachWithIndex { MultiSearchResponse.Item item, int i ->
+                if (item.failure) {
+                    throw new ElasticSearchException("Search #${i} of the multi-search request failed: ${item.failureMessage}")
+                }
+                Map search = searches[i]
+                if (search.count) {
+                    results << (item.response.hits.totalHits as Integer)
+                } else {
+                    results << buildSearchResults(item.response, search.params ?: [:])
+                }
+            }
+            LOG.debug "Multi-search returned the results of ${results.size()} search(es)."
+            return results
+        }
+    }
 
-            //Extract score information
-            //Records a map from hits of (hit.id, hit.score) returned in 'scores'
-            if (params.score) {
-                def scoreResults = [:]
-                for (SearchHit hit: searchHits) {
-                    if ( scoreResults[ hit.index + "." + hit.type ] == null ) {
-                        scoreResults[ hit.index + "." + hit.type ] = [:]
+    /**
+     * Sends a search request without waiting for its response. The results are built by the async executor.
+     *
+     * @param request The SearchRequest to compute
+     * @param params Search parameters
+     * @return A ResultFuture of the Map of search results
+     */
+    private ResultFuture doSearchAsync(SearchRequest request, Map params) {
+        ResultFuture future = new ResultFuture()
+        elasticSearchHelper.withElasticSearch { Client client ->
+            client.search(request, [
+                    onResponse: { SearchResponse response ->
+                        completeAsync(future) { buildSearchResults(response, params) }
+                    },
+                    onFailure: { Throwable e ->
+                        future.fail(e)
                     }
-                    scoreResults[ hit.index + "." + hit.type ][ hit.id ] = hit.score
+            ] as ActionListener)
+        }
+        return future
+    }
+
+    /**
+     * Sends a count request without waiting for its response.
+     *
+     * @param request The CountRequest to compute
+     * @param params Search parameters
+     * @return A ResultFuture of the number of hits
+     */
+    private ResultFuture<Integer> doCountAsync(CountRequest request, Map params) {
+        ResultFuture<Integer> future = new ResultFuture<Integer>()
+        elasticSearchHelper.withElasticSearch { Client client ->
+            client.count(request, [
+                    onResponse: { CountResponse response ->
+                        // Nothing to rebuild, the future is completed by the ElasticSearch listener thread
+                        future.complete((response.count ?: 0) as Integer)
+                    },
+                    onFailure: { Throwable e ->
+                        future.fail(e)
+                    }
+            ] as ActionListener)
+        }
+        return future
+    }
+
+    /**
+     * Completes a future with the results built by the async executor, within a persistence context.
+     * The ElasticSearch listener threads are never used to rebuild the results.
+     */
+    private void completeAsync(ResultFuture future, Closure buildResults) {
+        try {
+            getAsyncExecutor().execute {
+                if (future.isCancelled()) {
+                    return
+                }
+                persistenceInterceptor.init()
+                try {
+                    future.complete(buildResults())
+                } catch (Throwable e) {
+                    future.fail(e)
+                } finally {
+                    persistenceInterceptor.destroy()
                 }
-                result.scores = scoreResults
             }
+        } catch (RejectedExecutionException e) {
+            future.fail(e)
+        }
+    }
 
-            return result
+    private synchronized ExecutorService getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            int threads = (elasticSearchContextHolder.config.search.async.threads ?: Runtime.runtime.availableProcessors()) as int
+            asyncExecutor = Executors.newFixedThreadPool(threads, { Runnable r ->
+                Thread thread = new Thread(r, "elasticsearch-search-async")
+                thread.daemon = true
+                thread
+            } as ThreadFactory)
+        }
+        return asyncExecutor
+    }
+
+    /**
+     * Stops the async executor when the application shuts down.
+     */
+    public synchronized void destroy() {
+        asyncExecutor?.shutdown()
+        asyncExecutor = null
+    }
+
+    /**
+     * Computes a scan search request and passes its hits to the callback, batch by batch
+     *
+     * @param request The scan SearchRequest to compute
+     * @param params Search parameters
+     * @param callback Called with each result, stops the scroll if it returns false
+     * @return The number of hits passed to the callback
+     */
+    private long doScroll(SearchRequest request, Map params, Closure callback) {
+        elasticSearchHelper.withElasticSearch { Client client ->
+            def keepAlive = request.scroll().keepAlive()
+            def hydrate = params.hydrate ?: null
+            long count = 0
+
+            // The first response of a scan search only holds the total and the scroll id
+            def response = client.search(request).actionGet()
+            LOG.debug "Scrolling through ${response.hits.totalHits} hit(s)."
+
+            String scrollId = response.scrollId
+            while (true) {
+                response = client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute().actionGet()
+                scrollId = response.scrollId
+                def searchHits = response.hits
+                if (searchHits.hits.length == 0) {
+                    // The scroll is exhausted, ElasticSearch has released its context
+                    break
+                }
+                def results = params.asMap ? domainInstancesRebuilder.buildMaps(searchHits) : domainInstancesRebuilder.buildResults(searchHits, hydrate)
+                for (result in results) {
+                    count++
+                    if (callback.call(result) == false) {
+                        // The scroll context is released by ElasticSearch once keepAlive has elapsed
+                        LOG.debug "Scroll stopped by the callback after ${count} hit(s)."
+                        return count
+                    }
+                }
+            }
+            return count
+        }
+    }
+
+    /**
+     * Returns the cached response of a search or count request if the cache is enabled, or sends the request.
+     * Identical requests sent concurrently share the same request, each caller gets its own copy of the response.
+     *
+     * @param request The search or count request
+     * @param params Search parameters, the cache is bypassed with cache:false
+     * @param send Sends the request and returns its response
+     */
+    private withQueryResultCache(ActionRequest request, Map params, Closure send) {
+        if (!queryResultCache || params.cache == false) {
+            return send()
         }
+        return queryResultCache.get(QueryResultCache.key(request.indices(), request), send as Callable)
     }
 
     /**
@@ -472,7 +1143,7 @@ public class ElasticSearchService implements GrailsApplicationAware {
      */
     private doCount(CountRequest request, Map params) {
         elasticSearchHelper.withElasticSearch { Client client ->
-            def response = client.count(request).actionGet()
+            def response = withQueryResultCache(request, params) { client.count(request).actionGet() }
             def result = response.count ?: 0
 
             LOG.debug "${result} hit(s) matched the specified query."
@@ -63,6 +63,15 @@ class AuditEventListener extends SaveOrUpdateEventListener implements PostCollec
     /** List of pending object to delete */
     private static ThreadLocal<Map> deletedObjects = new ThreadLocal<Map>()
 
+    /** Keys of the objects journaled by the current transaction, each one once */
+    private static ThreadLocal<Set> journaledObjects = new ThreadLocal<Set>()
+
+    /** Partitions of the pending objects moved to another partition, as indexed before the transaction */
+    private static ThreadLocal<Map> movedObjects = new ThreadLocal<Map>()
+
+    /** Routing values of the pending objects whose routing value changed, as indexed before the transaction */
+    private static ThreadLocal<Map> reroutedObjects = new ThreadLocal<Map>()
+
     /**
      * Index & Delete requests are execute once per flush.
      * Before a flush event, the requests are store in callsBuffer and then executed once onFlush() is called.
@@ -90,9 +99,33 @@ class AuditEventListener extends SaveOrUpdateEventListener implements PostCollec
      * @param obj object to index
      * @param id assigned identifier (optional)
      */
-    def pushToIndex(entityName, id, obj) {
+    def pushToIndex(entityName, id, obj, previousPartition = null, previousRouting = null) {
         // Register transaction synchronization
         if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            if (previousPartition) {
+                def moved = movedObjects.get()
+                if (moved == null) {
+                    moved = [:]
+                    movedObjects.set(moved)
+                }
+                // The document is still in the partition it had before the first move of the transaction
+                def key = new EntityKey(entityName, id)
+                if (!moved.containsKey(key)) {
+                    moved[key] = previousPartition
+                }
+            }
+            if (previousRouting) {
+                def rerouted = reroutedObjects.get()
+                if (rerouted == null) {
+                    rerouted = [:]
+                    reroutedObjects.set(rerouted)
+                }
+                // Likewise, the document is still on the shard of its routing value before the transaction
+                def key = new EntityKey(entityName, id)
+                if (!rerouted.containsKey(key)) {
+                    rerouted[key] = previousRouting
+                }
+            }
             // Save object as pending
             def objs = pendingObjects.get()
             if (!objs) {
@@ -105,10 +138,18 @@ class AuditEventListener extends SaveOrUpdateEventListener implements PostCollec
                 deletedObjects.get().remove(key)
             }
             objs[key] = obj
+            // Record it before the commit, the journal replay reloads the entity anyway.
+            journal(key, false)
             registerMySynchronization()
 
         } else {
             // No transaction - Fire immediately.
+            if (previousPartition) {
+                indexRequestQueue.addPartitionMove(obj, previousPartition)
+            }
+            if (previousRouting) {
+                indexRequestQueue.addRoutingMove(obj, previousRouting)
+            }
             indexRequestQueue.addIndexRequest(obj)
         }
 
@@ -129,6 +170,7 @@ class AuditEventListener extends SaveOrUpdateEventListener implements PostCollec
                 pendingObjects.get().remove(key)
             }
             objs[key] = obj
+            journal(key, true)
             registerMySynchronization()
 
         } else {
@@ -137,6 +179,23 @@ class AuditEventListener extends SaveOrUpdateEventListener implements PostCollec
         }
     }
 
+    /**
+     * Records a request of the current transaction in the journal, once per object: a rollback withdraws it once.
+     */
+    private void journal(EntityKey key, boolean delete) {
+        def journal = indexRequestQueue.journal
+        if (!journal) {
+            return
+        }
+        def journaled = journaledObjects.get()
+        if (journaled == null) {
+            journaled = [] as Set
+            journaledObjects.set(journaled)
+        }
+        if (journaled.add(key)) {
+            journal.append(key.entityName, key.id.toString(), delete)
+        }
+    }
 
     void onPostUpdateCollection(PostCollectionUpdateEvent postCollectionUpdateEvent) {
         def clazz = postCollectionUpdateEvent.affectedOwnerOrNull?.class
@@ -158,8 +217,40 @@ class AuditEventListener extends SaveOrUpdateEventListener implements PostCollec
     void onPostUpdate(PostUpdateEvent event) {
         def clazz = event.entity?.class
         if (elasticSearchContextHolder.isRootClass(clazz)) {
-            pushToIndex(event.persister.entityName, event.id, event.entity)
+            pushToIndex(event.persister.entityName, event.id, event.entity, getPreviousPartition(event), getPreviousRouting(event))
+        }
+    }
+
+    /**
+     * @return the partition of a time-partitioned instance before the update, if the update changed it.
+     */
+    private String getPreviousPartition(PostUpdateEvent event) {
+        def scm = elasticSearchContextHolder.getMappingContextByType(event.entity.class)
+        if (!scm?.partitioned || event.oldState == null) {
+            return null
+        }
+        int index = event.persister.propertyNames.toList().indexOf(scm.partitionProperty)
+        if (index < 0) {
+            return null
         }
+        String previousPartition = scm.getPartitionIndexName(event.oldState[index])
+        previousPartition != scm.getIndexName(event.entity) ? previousPartition : null
+    }
+
+    /**
+     * @return the routing value of an instance of a routed class before the update, if the update changed it.
+     */
+    private String getPreviousRouting(PostUpdateEvent event) {
+        def scm = elasticSearchContextHolder.getMappingContextByType(event.entity.class)
+        if (!scm?.routing || event.oldState == null) {
+            return null
+        }
+        int index = event.persister.propertyNames.toList().indexOf(scm.routing)
+        if (index < 0) {
+            return null
+        }
+        String previousRouting = scm.toRoutingValue(event.oldState[index])
+        previousRouting != scm.getRoutingValue(event.entity) ? previousRouting : null
     }
 
     void onPostDelete(PostDeleteEvent event) {
@@ -228,6 +319,8 @@ class AuditEventListener extends SaveOrUpdateEventListener implements PostCollec
         def void afterCompletion(int status) {
             def objsToIndex = pendingObjects.get()
             def objsToDelete = deletedObjects.get()
+            def objsMoved = movedObjects.get()
+            def objsRerouted = reroutedObjects.get()
             switch (status) {
                 case STATUS_COMMITTED:
                     LOG.debug "Committing ${objsToIndex ? objsToIndex.size() : 0} objs."
@@ -244,13 +337,25 @@ class AuditEventListener extends SaveOrUpdateEventListener implements PostCollec
                     template.executeWithNewSession(new HibernateCallback() {
                         Object doInHibernate(Session session) {
                             if (objsToIndex) {
-                                for (def obj: objsToIndex.values()) {
-                                    indexRequestQueue.addIndexRequest(obj)
+                                for (def entry: objsToIndex.entrySet()) {
+                                    if (objsMoved?.get(entry.key)) {
+                                        indexRequestQueue.addPartitionMove(entry.value, objsMoved[entry.key])
+                                    }
+                                    if (objsRerouted?.get(entry.key)) {
+                                        indexRequestQueue.addRoutingMove(entry.value, objsRerouted[entry.key])
+                                    }
+                                    indexRequestQueue.addIndexRequest(entry.value)
                                 }
                             }
                             if (objsToDelete) {
-                                for (def obj: objsToDelete.values()) {
-                                    indexRequestQueue.addDeleteRequest(obj)
+                                for (def entry: objsToDelete.entrySet()) {
+                                    if (objsMoved?.get(entry.key)) {
+                                        indexRequestQueue.addPartitionMove(entry.value, objsMoved[entry.key])
+                                    }
+                                    if (objsRerouted?.get(entry.key)) {
+                                        indexRequestQueue.addRoutingMove(entry.value, objsRerouted[entry.key])
+                                    }
+                                    indexRequestQueue.addDeleteRequest(entry.value)
                                 }
                             }
                             null
@@ -263,6 +368,11 @@ class AuditEventListener extends SaveOrUpdateEventListener implements PostCollec
                     break
                 case STATUS_ROLLED_BACK:
                     LOG.debug "Rollbacking ${objsToIndex ? objsToIndex.size() : 0} objs."
+                    def journal = getIndexRequestQueue().journal
+                    if (journal) {
+                        // Records of other requests on the same entities are kept, see IndexRequestJournal.rollback()
+                        (journaledObjects.get() ?: []).each { key -> journal.rollback(key.entityName, key.id.toString()) }
+                    }
                     break
                 default:
                     LOG.error "Unknown transaction state."
@@ -271,6 +381,9 @@ class AuditEventListener extends SaveOrUpdateEventListener implements PostCollec
             // Clear objs
             pendingObjects.set(null)
             deletedObjects.set(null)
+            movedObjects.set(null)
+            reroutedObjects.set(null)
+            journaledObjects.set(null)
         }
 
     }
@@ -10,9 +10,14 @@ class ElasticSearchContextHolder {
     ConfigObject config
 
     /**
-     * A map containing the mapping to ElasticSearch
+     * A map containing the mapping to ElasticSearch, by domain class full name.
+     * The maps are read-only and replaced as a whole when a mapping is added, so lookups need no locking.
      */
-    Map<String, SearchableClassMapping> mapping = [:]
+    volatile Map<String, SearchableClassMapping> mapping = Collections.emptyMap()
+
+    private volatile Map<Class, SearchableClassMapping> mappingByClass = Collections.emptyMap()
+
+    private volatile Map<String, SearchableClassMapping> mappingByElasticType = Collections.emptyMap()
 
     /**
      * Setter for dependency injection
@@ -27,8 +32,18 @@ class ElasticSearchContextHolder {
      *
      * @param scm The SearchableClassMapping instance to add
      */
-    public void addMappingContext(SearchableClassMapping scm) {
-        mapping[scm.domainClass.fullName] = scm
+    public synchronized void addMappingContext(SearchableClassMapping scm) {
+        Map<String, SearchableClassMapping> byName = new HashMap<String, SearchableClassMapping>(mapping)
+        byName.put(scm.domainClass.fullName, scm)
+        Map<Class, SearchableClassMapping> byClass = new HashMap<Class, SearchableClassMapping>(byName.size())
+        Map<String, SearchableClassMapping> byElasticType = new HashMap<String, SearchableClassMapping>(byName.size())
+        for (SearchableClassMapping current : byName.values()) {
+            byClass.put(current.domainClass.clazz, current)
+            byElasticType.put(current.elasticTypeName, current)
+        }
+        mappingByClass = Collections.unmodifiableMap(byClass)
+        mappingByElasticType = Collections.unmodifiableMap(byElasticType)
+        mapping = Collections.unmodifiableMap(byName)
     }
 
     /**
@@ -37,7 +52,7 @@ class ElasticSearchContextHolder {
      * @return
      */
     SearchableClassMapping getMappingContext(String type) {
-        mapping[type]
+        mapping.get(type)
     }
 
     /**
@@ -46,7 +61,7 @@ class ElasticSearchContextHolder {
      * @return
      */
     SearchableClassMapping getMappingContext(GrailsDomainClass domainClass) {
-        mapping[domainClass.fullName]
+        mapping.get(domainClass.fullName)
     }
 
     /**
@@ -56,7 +71,7 @@ class ElasticSearchContextHolder {
      * @return
      */
     SearchableClassMapping getMappingContextByType(Class clazz) {
-        mapping.values().find { scm -> scm.domainClass.clazz == clazz }
+        mappingByClass.get(clazz)
     }
 
     /**
@@ -65,8 +80,9 @@ class ElasticSearchContextHolder {
      * @param clazz
      * @return A boolean determining if the class is root-mapped or not
      */
-    def isRootClass(Class clazz) {
-        mapping.values().any { scm -> scm.domainClass.clazz == clazz && scm.root }
+    boolean isRootClass(Class clazz) {
+        SearchableClassMapping scm = mappingByClass.get(clazz)
+        scm != null && scm.root
     }
 
     /**
@@ -85,6 +101,6 @@ class ElasticSearchContextHolder {
      * @return
      */
     SearchableClassMapping findMappingContextByElasticType(String elasticTypeName) {
-        mapping.values().find { scm -> scm.elasticTypeName == elasticTypeName }
+        mappingByElasticType.get(elasticTypeName)
     }
 }
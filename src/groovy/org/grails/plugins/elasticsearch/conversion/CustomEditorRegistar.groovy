@@ -10,7 +10,9 @@ class CustomEditorRegistar implements PropertyEditorRegistrar {
   def grailsApplication
 
   void registerCustomEditors(PropertyEditorRegistry reg) {
-    elasticSearchContextHolder = grailsApplication.mainContext.getBean('elasticSearchContextHolder')
+    if (!elasticSearchContextHolder) {
+      elasticSearchContextHolder = grailsApplication.mainContext.getBean('elasticSearchContextHolder')
+    }
     reg.registerCustomEditor(Date.class, new JSONDateBinder(elasticSearchContextHolder.config.date.formats as List))
   }
 
@@ -16,23 +16,24 @@
 
 package org.grails.plugins.elasticsearch.conversion
 
-import org.codehaus.groovy.grails.commons.GrailsDomainClassProperty
+import org.elasticsearch.common.bytes.BytesReference
+import org.elasticsearch.common.io.stream.BytesStreamOutput
 import org.elasticsearch.common.xcontent.XContentBuilder
+import org.elasticsearch.common.xcontent.XContentType
 import static org.elasticsearch.common.xcontent.XContentFactory.*
-import org.codehaus.groovy.grails.commons.GrailsDomainClass
-import org.codehaus.groovy.grails.commons.ApplicationHolder
 import org.grails.plugins.elasticsearch.conversion.marshall.DeepDomainClassMarshaller
 import org.grails.plugins.elasticsearch.conversion.marshall.DefaultMarshallingContext
 import org.grails.plugins.elasticsearch.conversion.marshall.DefaultMarshaller
 import org.grails.plugins.elasticsearch.conversion.marshall.MapMarshaller
 import org.grails.plugins.elasticsearch.conversion.marshall.CollectionMarshaller
 import org.codehaus.groovy.grails.commons.DomainClassArtefactHandler
-import java.beans.PropertyEditor
-import org.grails.plugins.elasticsearch.conversion.marshall.PropertyEditorMarshaller
 import org.grails.plugins.elasticsearch.conversion.marshall.Marshaller
-import org.grails.plugins.elasticsearch.conversion.marshall.SearchableReferenceMarshaller
+import org.grails.plugins.elasticsearch.conversion.marshall.MarshallingPlan
+import org.grails.plugins.elasticsearch.conversion.marshall.StreamingMarshaller
 import org.codehaus.groovy.grails.orm.hibernate.cfg.GrailsHibernateUtil
 
+import java.util.concurrent.ConcurrentHashMap
+
 /**
  * Marshall objects as JSON.
  */
@@ -41,6 +42,27 @@ class JSONDomainFactory {
     def elasticSearchContextHolder
     def grailsApplication
 
+    /**
+     * Whether documents are written straight into the XContentBuilder (see StreamingMarshaller),
+     * instead of being built as maps & lists first.
+     */
+    boolean streaming = false
+
+    /**
+     * Encoding of the index request sources (JSON or SMILE), ElasticSearch handles both transparently.
+     */
+    XContentType sourceType = XContentType.JSON
+
+    /**
+     * Output buffers bigger than this are not kept for the next document.
+     */
+    private static final int MAX_RECYCLED_BUFFER_SIZE = 1024 * 1024
+
+    /**
+     * Output buffer of each thread, recycled across documents by buildSource().
+     */
+    private static final ThreadLocal<BytesStreamOutput> BUFFERS = new ThreadLocal<BytesStreamOutput>()
+
     /**
      * The default marshallers, not defined by user
      */
@@ -49,6 +71,11 @@ class JSONDomainFactory {
             (Collection): CollectionMarshaller
     ]
 
+    /**
+     * Whether the classes of the marshalled values are domain classes.
+     */
+    private final Map<Class, Boolean> domainClassCache = new ConcurrentHashMap<Class, Boolean>()
+
     /**
      * Create and use the correct marshaller for a peculiar class
      * @param object The instance to marshall
@@ -59,8 +86,8 @@ class JSONDomainFactory {
         if (object == null) {
             return null
         }
-        def marshaller = null
-        def objectClass = object.getClass()
+        Marshaller marshaller = null
+        Class objectClass = object.getClass()
 
         // Resolve collections.
         // Check for direct marshaller matching
@@ -68,52 +95,30 @@ class JSONDomainFactory {
             marshaller = new CollectionMarshaller()
         }
 
-
-        if (!marshaller && DEFAULT_MARSHALLERS[objectClass]) {
-            marshaller = DEFAULT_MARSHALLERS[objectClass].newInstance()
-        }
-
         if (!marshaller) {
-
             // Check if we arrived from searchable domain class.
+            // The marshaller of the property was chosen when its marshalling plan was compiled.
+            MarshallingPlan.PropertyPlan property = null
             def parentObject = marshallingContext.peekDomainObject()
-            if (parentObject && marshallingContext.lastParentPropertyName && DomainClassArtefactHandler.isDomainClass(parentObject.getClass())) {
-                GrailsDomainClass domainClass = getDomainClass(parentObject)
-                def propertyMapping = elasticSearchContextHolder.getMappingContext(domainClass)?.getPropertyMapping(marshallingContext.lastParentPropertyName)
-                def converter = propertyMapping?.converter
-                // Property has converter information. Lets see how we can apply it.
-                if (converter) {
-                    // Property editor?
-                    if (converter instanceof Class) {
-                        if (PropertyEditor.isAssignableFrom(converter)) {
-                            marshaller = new PropertyEditorMarshaller(propertyEditorClass:converter)
-                        }
-                    }
-                } else if (propertyMapping?.reference) {
-                    def refClass = propertyMapping.getBestGuessReferenceType()
-                    marshaller = new SearchableReferenceMarshaller(refClass:refClass)
-                } else if (propertyMapping?.component) {
-                    marshaller = new DeepDomainClassMarshaller()
-                }
+            if (parentObject != null && marshallingContext.lastParentPropertyName) {
+                property = getMarshallingPlan(parentObject)?.getProperty(marshallingContext.lastParentPropertyName)
+            }
+            // A converter takes precedence over the map marshaller
+            if (object instanceof Map && property?.kind != MarshallingPlan.Kind.CONVERTER) {
+                marshaller = new MapMarshaller()
+            } else {
+                marshaller = property?.createMarshaller()
             }
         }
 
         if (!marshaller) {
             // TODO : support user custom marshaller/converter (& marshaller registration)
             // Check for domain classes
-            if (DomainClassArtefactHandler.isDomainClass(objectClass)) {
-                /*def domainClassName = objectClass.simpleName.substring(0,1).toLowerCase() + objectClass.simpleName.substring(1)
-             SearchableClassPropertyMapping propMap = elasticSearchContextHolder.getMappingContext(domainClassName).getPropertyMapping(marshallingContext.lastParentPropertyName)*/
+            if (isDomainClass(objectClass)) {
                 marshaller = new DeepDomainClassMarshaller()
             } else {
-                // Check for inherited marshaller matching
-                def inheritedMarshaller = DEFAULT_MARSHALLERS.find { key, value -> key.isAssignableFrom(objectClass)}
-                if (inheritedMarshaller) {
-                    marshaller = DEFAULT_MARSHALLERS[inheritedMarshaller.key].newInstance()
-                    // If no marshaller was found, use the default one
-                } else {
-                    marshaller = new DefaultMarshaller()
-                }
+                // If no marshaller was found, use the default one
+                marshaller = new DefaultMarshaller()
             }
         }
 
@@ -123,8 +128,23 @@ class JSONDomainFactory {
         marshaller.marshall(object)
     }
 
-    private GrailsDomainClass getDomainClass(instance) {
-        grailsApplication.domainClasses.find {it.clazz == GrailsHibernateUtil.unwrapIfProxy(instance).class}
+    /**
+     * @return whether the class is a domain class, cached by class.
+     */
+    boolean isDomainClass(Class clazz) {
+        Boolean domainClass = domainClassCache.get(clazz)
+        if (domainClass == null) {
+            domainClass = DomainClassArtefactHandler.isDomainClass(clazz)
+            domainClassCache.put(clazz, domainClass)
+        }
+        domainClass
+    }
+
+    /**
+     * @return the marshalling plan of a searchable domain instance, or null if it is not searchable.
+     */
+    private MarshallingPlan getMarshallingPlan(instance) {
+        elasticSearchContextHolder.getMappingContextByType(GrailsHibernateUtil.unwrapIfProxy(instance).getClass())?.marshallingPlan
     }
 
     /**
@@ -134,21 +154,61 @@ class JSONDomainFactory {
      * @return
      */
     public XContentBuilder buildJSON(instance) {
-        def domainClass = getDomainClass(instance)
-        def json = jsonBuilder().startObject()
+        buildDocument(instance, jsonBuilder())
+    }
+
+    private XContentBuilder buildDocument(instance, XContentBuilder json) {
+        if (streaming) {
+            writeDocument(instance, json)
+            json.close()
+            return json
+        }
+        json.startObject()
         // TODO : add maxDepth in custom mapping (only for "seachable components")
-        def scm = elasticSearchContextHolder.getMappingContext(domainClass)
+        MarshallingPlan plan = getMarshallingPlan(instance)
         def marshallingContext = new DefaultMarshallingContext(maxDepth: 5, parentFactory: this)
         marshallingContext.push(instance)
         // Build the json-formated map that will contain the data to index
-        scm.propertiesMapping.each { scpm ->
-            marshallingContext.lastParentPropertyName = scpm.propertyName
-            def res = delegateMarshalling(instance."${scpm.propertyName}", marshallingContext)
-            json.field(scpm.propertyName, res)
+        for (MarshallingPlan.PropertyPlan property : plan.properties) {
+            marshallingContext.lastParentPropertyName = property.name
+            def res = delegateMarshalling(property.getValue(instance), marshallingContext)
+            json.field(property.name, res)
         }
         marshallingContext.pop()
         json.endObject()
         json.close()
         json
     }
+
+    /**
+     * Build the source of the index request of a domain instance, encoded as configured by sourceType.
+     * In streaming mode, the document is written in a buffer recycled across the documents of the current thread,
+     * and only the resulting bytes are copied.
+     * @param instance A domain class instance.
+     * @return the source bytes
+     */
+    public BytesReference buildSource(instance) {
+        if (!streaming) {
+            return buildDocument(instance, contentBuilder(sourceType)).bytes()
+        }
+        BytesStreamOutput buffer = BUFFERS.get()
+        if (buffer == null) {
+            buffer = new BytesStreamOutput()
+            BUFFERS.set(buffer)
+        }
+        buffer.reset()
+        def json = new XContentBuilder(xContent(sourceType), buffer)
+        writeDocument(instance, json)
+        json.close()
+        BytesReference source = buffer.bytes().copyBytesArray()
+        if (buffer.size() > MAX_RECYCLED_BUFFER_SIZE) {
+            BUFFERS.remove()
+        }
+        source
+    }
+
+    private void writeDocument(instance, XContentBuilder json) {
+        def marshaller = new StreamingMarshaller(parentFactory: this, elasticSearchContextHolder: elasticSearchContextHolder, json: json)
+        marshaller.writeDocument(instance, getMarshallingPlan(instance))
+    }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.grails.plugins.elasticsearch.conversion.marshall
+
+import org.codehaus.groovy.grails.orm.hibernate.cfg.GrailsHibernateUtil
+import org.codehaus.groovy.runtime.InvokerHelper
+import org.elasticsearch.common.xcontent.XContentBuilder
+import org.grails.plugins.elasticsearch.conversion.JSONDomainFactory
+import org.hibernate.Hibernate
+
+/**
+ * Writes a domain instance straight into an XContentBuilder while walking its properties,
+ * without building the intermediate maps & lists of the other marshallers.
+ * Produces the same document as the default marshallers (DeepDomainClassMarshaller, CollectionMarshaller, etc.).
+ * Not thread-safe: use one instance per document.
+ */
+class StreamingMarshaller {
+
+    JSONDomainFactory parentFactory
+    def elasticSearchContextHolder
+    XContentBuilder json
+
+    /**
+     * Objects being marshalled, for cycle detection.
+     */
+    private final List<Object> stack = new ArrayList<Object>()
+
+    /**
+     * Writes the searchable properties of a root instance as a JSON object.
+     */
+    void writeDocument(instance, MarshallingPlan plan) {
+        json.startObject()
+        push(instance)
+        for (MarshallingPlan.PropertyPlan property : plan.properties) {
+            json.field(property.name)
+            writeValue(property.getValue(instance), property, false, false)
+        }
+        pop()
+        json.endObject()
+    }
+
+    /**
+     * @param value the value to write
+     * @param property the plan of the domain property the value belongs to, if any
+     * @param nested whether the value is nested in a collection or a map of that property
+     * @param copyDates whether Date subclasses should be written as plain Dates (XContentBuilder only supports exact Dates)
+     */
+    private void writeValue(value, MarshallingPlan.PropertyPlan property, boolean nested, boolean copyDates) {
+        if (value == null) {
+            json.nullValue()
+            return
+        }
+        if (writeCycle(value)) {
+            return
+        }
+        push(value)
+        if (value instanceof Collection) {
+            Hibernate.initialize(value)
+            json.startArray()
+            for (element in value) {
+                writeValue(element, nested ? null : property, true, false)
+            }
+            json.endArray()
+        } else if (value instanceof Map && property?.kind != MarshallingPlan.Kind.CONVERTER) {
+            writeMap(value, nested ? null : property)
+        } else {
+            switch (property?.kind) {
+                case MarshallingPlan.Kind.CONVERTER:
+                    def editor = property.mapping.converter.newInstance()
+                    editor.setValue(value)
+                    json.value(editor.getAsText())
+                    break
+                case MarshallingPlan.Kind.REFERENCE:
+                    json.startObject()
+                    json.field('id', InvokerHelper.invokeMethod(value, "ident", null))
+                    json.endObject()
+                    break
+                case MarshallingPlan.Kind.COMPONENT:
+                    writeDomainObject(value)
+                    break
+                default:
+                    if (parentFactory.isDomainClass(value.getClass())) {
+                        writeDomainObject(value)
+                    } else if (copyDates && value instanceof Date) {
+                        json.value(new Date(value.getTime()))
+                    } else {
+                        json.value(value)
+                    }
+            }
+        }
+        pop()
+    }
+
+    private void writeMap(Map map, MarshallingPlan.PropertyPlan property) {
+        json.startObject()
+        map.each { key, value ->
+            json.field(key.toString())
+            if (value instanceof Map) {
+                // Nested maps are marshalled directly by the MapMarshaller, out of the property context.
+                if (!writeCycle(value)) {
+                    push(value)
+                    writeMap(value, null)
+                    pop()
+                }
+            } else {
+                writeValue(value, property, true, false)
+            }
+        }
+        json.endObject()
+    }
+
+    /**
+     * Same as DeepDomainClassMarshaller.
+     */
+    private void writeDomainObject(instance) {
+        def instanceClass = GrailsHibernateUtil.unwrapIfProxy(instance).getClass()
+        def scm = elasticSearchContextHolder.getMappingContextByType(instanceClass)
+        if (!scm) {
+            throw new IllegalStateException("Domain class ${instanceClass} is not searchable.")
+        }
+        json.startObject()
+        json.field('id', instance.id)
+        json.field('class', scm.domainClass.clazz.name)
+        for (MarshallingPlan.PropertyPlan property : scm.marshallingPlan.properties) {
+            if (!property.persistent) {
+                continue
+            }
+            def propertyValue = property.getValue(instance)
+            json.field(property.name)
+            if (propertyValue != null && parentFactory.isDomainClass(propertyValue.getClass())) {
+                writeDomainProperty(propertyValue, property)
+            } else {
+                writeValue(propertyValue, property, false, true)
+            }
+        }
+        json.endObject()
+    }
+
+    private void writeDomainProperty(value, MarshallingPlan.PropertyPlan property) {
+        def id = InvokerHelper.invokeMethod(value, "ident", null)
+        String className = value.getClass().name
+        boolean searchable = elasticSearchContextHolder.getMappingContextByType(GrailsHibernateUtil.unwrapIfProxy(value).getClass()) != null
+        if (searchable && writeCycle(value, id)) {
+            return
+        }
+        if (searchable && property.kind != MarshallingPlan.Kind.REFERENCE) {
+            push(value)
+            writeDomainObject(value)
+            pop()
+        } else {
+            json.startObject()
+            json.field('id', id)
+            json.field('class', className)
+            json.endObject()
+        }
+    }
+
+    /**
+     * Writes a reference to an object being marshalled, if any.
+     * @param id id to write before the reference, if it is a domain property.
+     * @return true if a cycle was found
+     */
+    private boolean writeCycle(value, id = null) {
+        int cycleIndex = -1
+        for (int i = 0; i < stack.size(); i++) {
+            if (stack.get(i).is(value)) {
+                cycleIndex = i
+                break
+            }
+        }
+        if (cycleIndex == -1) {
+            return false
+        }
+        StringBuilder ref = new StringBuilder()
+        for (int i = cycleIndex; i < stack.size(); i++) {
+            ref.append(i == cycleIndex ? '..' : '/..')
+        }
+        json.startObject()
+        if (id != null) {
+            json.field('id', id)
+        }
+        json.field('class', value.getClass().name)
+        json.field('ref', ref.toString())
+        json.endObject()
+        return true
+    }
+
+    private void push(object) {
+        stack.add(object)
+    }
+
+    private void pop() {
+        stack.remove(stack.size() - 1)
+    }
+}
@@ -1,9 +1,27 @@
 package org.grails.plugins.elasticsearch.conversion.unmarshall
 
+import org.springframework.beans.TypeConverter
+
 class DefaultUnmarshallingContext {
   Stack<String> unmarshallingStack = new Stack<String>()
   Stack<CycleReferenceSource> cycleRefStack = new Stack<CycleReferenceSource>()
 
+  /**
+   * Sources of the searchable references prefetched for the current request, by "type#id".
+   */
+  Map<String, Map<String, Object>> referenceSources = new HashMap<String, Map<String, Object>>()
+
+  /**
+   * Searchable references already rebuilt for the current request, by "type#id".
+   * Kept across hits (unlike the stacks) so that a referenced document is only fetched and rebuilt once.
+   */
+  Map<String, Object> references = new HashMap<String, Object>()
+
+  /**
+   * Converts the rebuilt values to the property types, with the plugin property editors (eg: dates).
+   */
+  TypeConverter bindingConverter
+
   def addCycleRef(data) {
     assert data.ref
     def referredPos = unmarshallingStack.size() - (data.ref.split('/').size()+1)
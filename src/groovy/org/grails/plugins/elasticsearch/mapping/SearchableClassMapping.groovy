@@ -18,29 +18,55 @@ package org.grails.plugins.elasticsearch.mapping;
 
 import org.codehaus.groovy.grails.commons.GrailsDomainClass;
 import org.grails.plugins.elasticsearch.ElasticSearchContextHolder;
+import org.grails.plugins.elasticsearch.conversion.marshall.MarshallingPlan;
+import org.grails.plugins.elasticsearch.conversion.unmarshall.BindingPlan;
 
 public class SearchableClassMapping {
-    
+
+    /** Search results rebuilt from the indexed documents */
+    public static final String HYDRATE_INDEX = "index";
+    /** Search results loaded from the database */
+    public static final String HYDRATE_DATABASE = "database";
+    /** Suffix of the partition holding the documents without a date */
+    public static final String UNDATED_PARTITION = "undated";
+
     /** All searchable properties */
     private Collection<SearchableClassPropertyMapping> propertiesMapping;
+    /** Searchable properties by name */
+    private Map<String, SearchableClassPropertyMapping> propertiesMappingByName = new HashMap<String, SearchableClassPropertyMapping>();
     /** Owning domain class */
     private GrailsDomainClass domainClass;
     /** Searchable root? */
     private boolean root = true;
     private boolean all = true;
+    /** How search results are rebuilt, null for the configured default */
+    private String hydrate;
+    /** Name of the search profile used to search this class, null for the configured default */
+    private String profile;
+    /** Name of the property routing the documents of this class to their shard, null for the default routing on id */
+    private String routing;
+    /** Date property partitioning the documents of this class in time-based indices, null if not partitioned */
+    private String partitionProperty;
+    /** Period covered by each partition */
+    private PartitionInterval partitionInterval;
+    private String elasticTypeName;
+    /** Compiled marshalling of the searchable properties */
+    private volatile MarshallingPlan marshallingPlan;
+    /** Compiled binding of the properties rebuilt from search hits */
+    private volatile BindingPlan bindingPlan;
 
     public SearchableClassMapping(GrailsDomainClass domainClass, Collection<SearchableClassPropertyMapping> propertiesMapping) {
         this.domainClass = domainClass;
         this.propertiesMapping = propertiesMapping;
+        if (propertiesMapping != null) {
+            for(SearchableClassPropertyMapping scpm : propertiesMapping) {
+                propertiesMappingByName.put(scpm.getPropertyName(), scpm);
+            }
+        }
     }
 
     public SearchableClassPropertyMapping getPropertyMapping(String propertyName) {
-        for(SearchableClassPropertyMapping scpm : propertiesMapping) {
-            if (scpm.getPropertyName().equals(propertyName)) {
-                return scpm;
-            }
-        }
-        return null;
+        return propertiesMappingByName.get(propertyName);
     }
 
     public Boolean isRoot() {
@@ -51,6 +77,92 @@ public class SearchableClassMapping {
         this.root = root != null && root;
     }
 
+    public String getHydrate() {
+        return hydrate;
+    }
+
+    public void setHydrate(String hydrate) {
+        this.hydrate = hydrate;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public void setProfile(String profile) {
+        this.profile = profile;
+    }
+
+    public String getRouting() {
+        return routing;
+    }
+
+    public void setRouting(String routing) {
+        this.routing = routing;
+    }
+
+    /**
+     * @return the version of an instance, null if this class is not versioned.
+     */
+    public Long getVersionValue(Object instance) {
+        if (domainClass.version == null) {
+            return null;
+        }
+        def version = instance[domainClass.version.name]
+        return version == null ? null : version as Long;
+    }
+
+    public String getPartitionProperty() {
+        return partitionProperty;
+    }
+
+    public void setPartitionProperty(String partitionProperty) {
+        this.partitionProperty = partitionProperty;
+    }
+
+    public PartitionInterval getPartitionInterval() {
+        return partitionInterval;
+    }
+
+    public void setPartitionInterval(PartitionInterval partitionInterval) {
+        this.partitionInterval = partitionInterval;
+    }
+
+    /**
+     * @return true if the documents of this class are partitioned in time-based indices, behind the alias {@link #getIndexName()}.
+     */
+    public boolean isPartitioned() {
+        return partitionProperty != null;
+    }
+
+    /**
+     * @return false if a document of this class cannot be got by its id only, as its routing value or partition is needed.
+     */
+    public boolean isGettableById() {
+        return routing == null && !partitioned;
+    }
+
+    /**
+     * @return the routing value of an instance of this class (the id of an associated domain instance), null if the
+     * class has no routing property or if it is not set.
+     */
+    public String getRoutingValue(Object instance) {
+        if (routing == null) {
+            return null;
+        }
+        return toRoutingValue(instance[routing]);
+    }
+
+    /**
+     * @return the routing value for a value of the routing property, ie as it was before an update.
+     */
+    public String toRoutingValue(Object value) {
+        if (value != null && value.respondsTo('ident')) {
+            value = value.ident()
+        }
+        return value?.toString();
+    }
+
     public Collection<SearchableClassPropertyMapping> getPropertiesMapping() {
         return propertiesMapping;
     }
@@ -59,6 +171,38 @@ public class SearchableClassMapping {
         return domainClass;
     }
 
+    /**
+     * Compiles the marshalling & binding plans of this mapping, once it is complete and validated.
+     */
+    public void compileMarshallingPlan() {
+        marshallingPlan = MarshallingPlan.compile(this);
+        bindingPlan = BindingPlan.compile(domainClass);
+    }
+
+    /**
+     * @return the marshalling plan, compiled on first use if needed.
+     */
+    public MarshallingPlan getMarshallingPlan() {
+        MarshallingPlan plan = marshallingPlan;
+        if (plan == null) {
+            plan = MarshallingPlan.compile(this);
+            marshallingPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * @return the binding plan, compiled on first use if needed.
+     */
+    public BindingPlan getBindingPlan() {
+        BindingPlan plan = bindingPlan;
+        if (plan == null) {
+            plan = BindingPlan.compile(domainClass);
+            bindingPlan = plan;
+        }
+        return plan;
+    }
+
     /**
      * Validate searchable class mapping.
      * @param contextHolder context holding all known searchable mappings.
@@ -67,6 +211,10 @@ public class SearchableClassMapping {
         for(SearchableClassPropertyMapping scpm : propertiesMapping) {
             scpm.validate(contextHolder);
         }
+        if (profile != null && !(contextHolder.config.search.profiles[profile] instanceof Map)) {
+            throw new IllegalArgumentException("Search profile [" + profile + "] used in [" + domainClass.getPropertyName() +
+                    "#searchable] is not defined in elasticSearch.search.profiles.");
+        }
     }
 
 
@@ -79,15 +227,48 @@ public class SearchableClassMapping {
             // index name must be lowercase (org.elasticsearch.indices.InvalidIndexNameException)
             name = domainClass.getPropertyName();
         }
+        if (partitioned) {
+            // The alias of the partitions is specific to this class
+            name += '-' + domainClass.getPropertyName();
+        }
         return name.toLowerCase();
     }
 
+    /**
+     * @return the index of an instance: its partition if this class is partitioned, the index of the class otherwise.
+     */
+    public String getIndexName(Object instance) {
+        if (!partitioned) {
+            return getIndexName();
+        }
+        return getPartitionIndexName(instance[partitionProperty]);
+    }
+
+    /**
+     * @return the partition holding the documents of the given date. Documents without a date are all held by
+     * the same partition, so that reindexing them never duplicates them.
+     */
+    public String getPartitionIndexName(Date date) {
+        return getIndexName() + '-' + (date != null ? partitionInterval.suffix(date) : UNDATED_PARTITION);
+    }
+
+    /**
+     * @return the partitions holding the documents of the given period, some of them may not exist.
+     */
+    public List<String> getPartitionIndexNames(Date since, Date until) {
+        String alias = getIndexName();
+        return partitionInterval.suffixes(since, until).collect { alias + '-' + it };
+    }
+
     /**
      * @return type name for ES mapping.
      */
     public String getElasticTypeName() {
-        // dot in ES type cause some issue on elastic search
-        return domainClass.getFullName().toLowerCase().replace('.', '_');
+        if (elasticTypeName == null) {
+            // dot in ES type cause some issue on elastic search
+            elasticTypeName = domainClass.getFullName().toLowerCase().replace('.', '_');
+        }
+        return elasticTypeName;
     }
 
     public boolean isAll() {
@@ -21,6 +21,7 @@ import org.grails.plugins.elasticsearch.mapping.SearchableClassMapping
 import org.grails.plugins.elasticsearch.mapping.SearchableDomainClassMapper
 import org.apache.commons.logging.LogFactory
 import org.grails.plugins.elasticsearch.exception.IndexException
+import org.grails.plugins.elasticsearch.search.QueryTemplate
 
 class DomainDynamicMethodsUtils {
 
@@ -58,6 +59,52 @@ class DomainDynamicMethodsUtils {
                     domain.metaClass.'static'.search << { Closure q, Map params = [:] ->
                         elasticSearchService.search(params + indexAndType, q)
                     }
+                    domain.metaClass.'static'.search << { QueryTemplate.Bound q, Map params = [:] ->
+                        elasticSearchService.search(q, params + indexAndType)
+                    }
+
+                    // Inject the searchAsync & countHitsAsync methods
+                    domain.metaClass.'static'.searchAsync << { String q, Map params = [:] ->
+                        elasticSearchService.searchAsync(q, params + indexAndType)
+                    }
+                    domain.metaClass.'static'.searchAsync << { QueryTemplate.Bound q, Map params = [:] ->
+                        elasticSearchService.searchAsync(q, params + indexAndType)
+                    }
+                    domain.metaClass.'static'.searchAsync << { Map params = [:], Closure q ->
+                        elasticSearchService.searchAsync(params + indexAndType, q)
+                    }
+                    domain.metaClass.'static'.searchAsync << { Closure q, Map params = [:] ->
+                        elasticSearchService.searchAsync(params + indexAndType, q)
+                    }
+                    domain.metaClass.'static'.countHitsAsync << { String q, Map params = [:] ->
+                        elasticSearchService.countHitsAsync(q, params + indexAndType)
+                    }
+                    domain.metaClass.'static'.countHitsAsync << { QueryTemplate.Bound q, Map params = [:] ->
+                        elasticSearchService.countHitsAsync(q, params + indexAndType)
+                    }
+                    domain.metaClass.'static'.countHitsAsync << { Map params = [:], Closure q ->
+                        elasticSearchService.countHitsAsync(params + indexAndType, q)
+                    }
+                    domain.metaClass.'static'.countHitsAsync << { Closure q, Map params = [:] ->
+                        elasticSearchService.countHitsAsync(params + indexAndType, q)
+                    }
+
+                    // Inject the scroll method
+                    domain.metaClass.'static'.scroll << { String q, Map params, Closure callback ->
+                        elasticSearchService.scroll(q, params + indexAndType, callback)
+                    }
+                    domain.metaClass.'static'.scroll << { String q, Closure callback ->
+                        elasticSearchService.scroll(q, indexAndType, callback)
+                    }
+                    domain.metaClass.'static'.scroll << { Map params, Closure q, Closure callback ->
+                        elasticSearchService.scroll(params + indexAndType, q, callback)
+                    }
+                    domain.metaClass.'static'.scroll << { Closure q, Closure callback ->
+                        elasticSearchService.scroll(indexAndType, q, callback)
+                    }
+                    domain.metaClass.'static'.scroll << { QueryTemplate.Bound q, Map params, Closure callback ->
+                        elasticSearchService.scroll(q, params + indexAndType, callback)
+                    }
 
                     // Inject the countHits method
                     domain.metaClass.'static'.countHits << { String q, Map params = [:] ->
@@ -69,6 +116,9 @@ class DomainDynamicMethodsUtils {
                     domain.metaClass.'static'.countHits << { Closure q, Map params = [:] ->
                         elasticSearchService.countHits(params + indexAndType, q)
                     }
+                    domain.metaClass.'static'.countHits << { QueryTemplate.Bound q, Map params = [:] ->
+                        elasticSearchService.countHits(q, params + indexAndType)
+                    }
 
                     // Inject the index method
                     // static index() with no arguments index every instances of the domainClass
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.grails.plugins.elasticsearch.conversion.marshall;
+
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.grails.plugins.elasticsearch.mapping.SearchableClassMapping;
+import org.grails.plugins.elasticsearch.mapping.SearchableClassPropertyMapping;
+import org.springframework.beans.BeanUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.beans.PropertyDescriptor;
+import java.beans.PropertyEditor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * How to marshall the properties of a searchable class, resolved once from its {@link SearchableClassMapping}:
+ * the getter of each property and the marshaller to use for its values.
+ */
+public class MarshallingPlan {
+
+    /**
+     * Marshaller chosen from the property mapping.
+     */
+    public enum Kind {
+        /** Marshalled with the property editor class given as 'converter'. */
+        CONVERTER,
+        /** Marshalled as a reference to another searchable class. */
+        REFERENCE,
+        /** Marshalled as a searchable component. */
+        COMPONENT,
+        /** Marshaller chosen from the value type (collection, map, domain class or simple value). */
+        DEFAULT
+    }
+
+    private final List<PropertyPlan> properties;
+    private final Map<String, PropertyPlan> propertiesByName;
+
+    private MarshallingPlan(List<PropertyPlan> properties) {
+        this.properties = Collections.unmodifiableList(properties);
+        Map<String, PropertyPlan> byName = new HashMap<String, PropertyPlan>();
+        for (PropertyPlan property : properties) {
+            byName.put(property.getName(), property);
+        }
+        this.propertiesByName = byName;
+    }
+
+    /**
+     * Compiles the plan of a searchable class mapping.
+     */
+    public static MarshallingPlan compile(SearchableClassMapping scm) {
+        Class<?> clazz = scm.getDomainClass().getClazz();
+        List<PropertyPlan> properties = new ArrayList<PropertyPlan>();
+        for (SearchableClassPropertyMapping scpm : scm.getPropertiesMapping()) {
+            PropertyDescriptor descriptor = BeanUtils.getPropertyDescriptor(clazz, scpm.getPropertyName());
+            Method getter = descriptor != null ? descriptor.getReadMethod() : null;
+            if (getter != null) {
+                ReflectionUtils.makeAccessible(getter);
+            }
+
+            Kind kind = Kind.DEFAULT;
+            Class<?> marshallerArgument = null;
+            Object converter = scpm.getConverter();
+            if (converter != null) {
+                if (converter instanceof Class && PropertyEditor.class.isAssignableFrom((Class<?>) converter)) {
+                    kind = Kind.CONVERTER;
+                    marshallerArgument = (Class<?>) converter;
+                }
+            } else if (scpm.getReference() != null) {
+                kind = Kind.REFERENCE;
+                marshallerArgument = scpm.getBestGuessReferenceType();
+            } else if (scpm.isComponent()) {
+                kind = Kind.COMPONENT;
+            }
+            properties.add(new PropertyPlan(scpm, getter, kind, marshallerArgument));
+        }
+        return new MarshallingPlan(properties);
+    }
+
+    public List<PropertyPlan> getProperties() {
+        return properties;
+    }
+
+    public PropertyPlan getProperty(String name) {
+        return propertiesByName.get(name);
+    }
+
+    /**
+     * How to read and marshall a single property.
+     */
+    public static class PropertyPlan {
+        private final SearchableClassPropertyMapping mapping;
+        private final String name;
+        private final boolean persistent;
+        private final Method getter;
+        private final Kind kind;
+        private final Class<?> marshallerArgument;
+
+        PropertyPlan(SearchableClassPropertyMapping mapping, Method getter, Kind kind, Class<?> marshallerArgument) {
+            this.mapping = mapping;
+            this.name = mapping.getPropertyName();
+            this.persistent = mapping.getGrailsProperty().isPersistent();
+            this.getter = getter;
+            this.kind = kind;
+            this.marshallerArgument = marshallerArgument;
+        }
+
+        /**
+         * @return the value of the property, read through its getter when there is one.
+         */
+        public Object getValue(Object instance) {
+            if (getter == null) {
+                return InvokerHelper.getProperty(instance, name);
+            }
+            try {
+                return getter.invoke(instance);
+            } catch (InvocationTargetException e) {
+                ReflectionUtils.rethrowRuntimeException(e.getTargetException());
+            } catch (IllegalAccessException e) {
+                ReflectionUtils.handleReflectionException(e);
+            }
+            return null;
+        }
+
+        /**
+         * @return a new marshaller for the values of this property, or null if it depends on the value type.
+         */
+        public Marshaller createMarshaller() {
+            switch (kind) {
+                case CONVERTER:
+                    PropertyEditorMarshaller propertyEditorMarshaller = new PropertyEditorMarshaller();
+                    propertyEditorMarshaller.setPropertyEditorClass(marshallerArgument);
+                    return propertyEditorMarshaller;
+                case REFERENCE:
+                    SearchableReferenceMarshaller referenceMarshaller = new SearchableReferenceMarshaller();
+                    referenceMarshaller.setRefClass(marshallerArgument);
+                    return referenceMarshaller;
+                case COMPONENT:
+                    return new DeepDomainClassMarshaller();
+                default:
+                    return null;
+            }
+        }
+
+        public SearchableClassPropertyMapping getMapping() {
+            return mapping;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isPersistent() {
+            return persistent;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2002-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.grails.plugins.elasticsearch.conversion.unmarshall;
+
+import org.codehaus.groovy.grails.commons.GrailsDomainClass;
+import org.codehaus.groovy.grails.commons.GrailsDomainClassProperty;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.TypeConverter;
+import org.springframework.beans.TypeMismatchException;
+import org.springframework.util.ReflectionUtils;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * How to set the properties of a domain class rebuilt from a search hit, resolved once per class:
+ * the setter and the type of each property.
+ * Values which cannot be set directly (nested maps, unexpected types) are left to the Grails data binding.
+ */
+public class BindingPlan {
+
+    private final Map<String, PropertyBinding> properties;
+
+    private BindingPlan(Map<String, PropertyBinding> properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Compiles the plan of a domain class.
+     */
+    public static BindingPlan compile(GrailsDomainClass domainClass) {
+        Map<String, PropertyBinding> properties = new HashMap<String, PropertyBinding>();
+        for (GrailsDomainClassProperty property : domainClass.getProperties()) {
+            PropertyDescriptor descriptor = BeanUtils.getPropertyDescriptor(domainClass.getClazz(), property.getName());
+            Method setter = descriptor != null ? descriptor.getWriteMethod() : null;
+            if (setter != null) {
+                ReflectionUtils.makeAccessible(setter);
+                properties.put(property.getName(), new PropertyBinding(setter, descriptor.getPropertyType()));
+            }
+        }
+        return new BindingPlan(properties);
+    }
+
+    /**
+     * Sets a property of a rebuilt instance.
+     *
+     * @return false if the value could not be set directly and must be bound with the Grails data binding.
+     */
+    public boolean bind(Object instance, String propertyName, Object value, TypeConverter typeConverter) {
+        PropertyBinding binding = properties.get(propertyName);
+        return binding != null && binding.bind(instance, value, typeConverter);
+    }
+
+    static class PropertyBinding {
+        private final Method setter;
+        private final Class<?> type;
+
+        PropertyBinding(Method setter, Class<?> type) {
+            this.setter = setter;
+            this.type = type;
+        }
+
+        boolean bind(Object instance, Object value, TypeConverter typeConverter) {
+            Object converted;
+            if (value == null) {
+                if (type.isPrimitive()) {
+                    return false;
+                }
+                converted = null;
+            } else if (type.isInstance(value)) {
+                converted = value;
+            } else if (value instanceof Collection) {
+                converted = toCollection((Collection<?>) value);
+                if (converted == null) {
+                    return false;
+                }
+            } else if (value instanceof Map) {
+                return false;
+            } else {
+                try {
+                    converted = typeConverter.convertIfNecessary(value, type);
+                } catch (TypeMismatchException e) {
+                    return false;
+                }
+            }
+            try {
+                setter.invoke(instance, converted);
+            } catch (InvocationTargetException e) {
+                ReflectionUtils.rethrowRuntimeException(e.getTargetException());
+            } catch (IllegalAccessException e) {
+                ReflectionUtils.handleReflectionException(e);
+            }
+            return true;
+        }
+
+        /**
+         * @return the values in a collection of the property type, or null if it is not a supported collection type.
+         */
+        private Collection<Object> toCollection(Collection<?> values) {
+            Collection<Object> collection;
+            if (type.isAssignableFrom(ArrayList.class)) {
+                collection = new ArrayList<Object>(values.size());
+            } else if (type.isAssignableFrom(LinkedHashSet.class)) {
+                collection = new LinkedHashSet<Object>(values.size());
+            } else if (type.isAssignableFrom(TreeSet.class)) {
+                collection = new TreeSet<Object>();
+            } else {
+                return null;
+            }
+            for (Object value : values) {
+                if (value instanceof Map || value instanceof Collection) {
+                    // Not rebuilt, leave it to the data binding.
+                    return null;
+                }
+            }
+            collection.addAll(values);
+            return collection;
+        }
+    }
+}
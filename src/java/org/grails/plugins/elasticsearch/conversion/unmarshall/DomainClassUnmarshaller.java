@@ -21,14 +21,20 @@ import org.apache.log4j.Logger;
 import org.codehaus.groovy.grails.commons.*;
 import org.codehaus.groovy.grails.web.metaclass.BindDynamicMethod;
 import org.codehaus.groovy.runtime.DefaultGroovyMethods;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
 import org.elasticsearch.search.SearchHits;
 import org.grails.plugins.elasticsearch.ElasticSearchContextHolder;
 import org.grails.plugins.elasticsearch.mapping.SearchableClassMapping;
 import org.grails.plugins.elasticsearch.mapping.SearchableClassPropertyMapping;
+import org.springframework.beans.PropertyEditorRegistrar;
 import org.springframework.beans.SimpleTypeConverter;
 import org.springframework.beans.TypeConverter;
 
@@ -42,45 +48,350 @@ public class DomainClassUnmarshaller {
 
     private static final Logger LOG = Logger.getLogger(DomainClassUnmarshaller.class);
 
+    /**
+     * Max number of multi-get rounds when prefetching references of references.
+     */
+    private static final int MAX_PREFETCH_ROUNDS = 3;
+
+    /**
+     * Name of the partial field holding the projected source of the hits, when searching with include/exclude.
+     */
+    public static final String PROJECTION_FIELD = "_projection";
+
     private TypeConverter typeConverter = new SimpleTypeConverter();
     private ElasticSearchContextHolder elasticSearchContextHolder;
     private BindDynamicMethod bind = new BindDynamicMethod();
     private GrailsApplication grailsApplication;
     private Client elasticSearchClient;
+    private PropertyEditorRegistrar customEditorRegistrar;
+    private volatile Boolean unmarshallComponents;
+    private volatile String defaultHydrate;
 
 
     public Collection buildResults(SearchHits hits) {
-        DefaultUnmarshallingContext unmarshallingContext = new DefaultUnmarshallingContext();
+        DefaultUnmarshallingContext unmarshallingContext = createUnmarshallingContext();
+        prefetchReferences(hits, unmarshallingContext);
         List results = new ArrayList();
         for(SearchHit hit : hits) {
-            String type = hit.type();
-            SearchableClassMapping scm = elasticSearchContextHolder.findMappingContextByElasticType(type);
+            SearchableClassMapping scm = getMappingContext(hit);
             if (scm == null) {
-                LOG.warn("Unknown SearchHit: " + hit.id() + "#" + hit.type() + ", domain class name: ");
                 continue;
             }
-            String domainClassName = scm.getDomainClass().getFullName();
+            results.add(buildResult(hit, scm, unmarshallingContext));
+        }
+        return results;
+    }
 
-            GrailsDomainClassProperty identifier = scm.getDomainClass().getIdentifier();
-            Object id = typeConverter.convertIfNecessary(hit.id(), identifier.getType());
-            GroovyObject instance = (GroovyObject) scm.getDomainClass().newInstance();
-            instance.setProperty(identifier.getName(), id);
+    /**
+     * Builds the domain instances of the hits, loading the ones hydrated from the database with one batched
+     * getAll() per domain class instead of rebuilding them from their source.
+     * The hits order is kept. Hits whose row was deleted from the database since it was indexed are skipped.
+     *
+     * @param hydrate "index" or "database" to hydrate all the hits the same way,
+     *                null to use the hydrate mapping option of each class
+     */
+    public Collection buildResults(SearchHits hits, String hydrate) {
+        SearchHit[] hitsArray = hits.getHits();
+        Object[] results = new Object[hitsArray.length];
+        Map<SearchableClassMapping, List<Integer>> databaseHits = new LinkedHashMap<SearchableClassMapping, List<Integer>>();
+        List<Integer> indexHits = new ArrayList<Integer>();
+        for (int i = 0; i < hitsArray.length; i++) {
+            SearchableClassMapping scm = getMappingContext(hitsArray[i]);
+            if (scm == null) {
+                continue;
+            }
+            if (isHydratedFromDatabase(scm, hydrate)) {
+                List<Integer> positions = databaseHits.get(scm);
+                if (positions == null) {
+                    positions = new ArrayList<Integer>();
+                    databaseHits.put(scm, positions);
+                }
+                positions.add(i);
+            } else {
+                indexHits.add(i);
+            }
+        }
 
-            /*def mapContext = elasticSearchContextHolder.getMappingContext(domainClass.propertyName)?.propertiesMapping*/
-            Map rebuiltProperties = new HashMap();
-            for(Map.Entry<String, Object> entry : hit.getSource().entrySet()) {
-                unmarshallingContext.getUnmarshallingStack().push(entry.getKey());
-                rebuiltProperties.put(entry.getKey(),
-                        unmarshallProperty(scm.getDomainClass(), entry.getKey(), entry.getValue(), unmarshallingContext));
-                populateCyclicReference(instance, rebuiltProperties, unmarshallingContext);
-                unmarshallingContext.resetContext();
+        if (!indexHits.isEmpty()) {
+            List<SearchHit> sourceHits = new ArrayList<SearchHit>(indexHits.size());
+            for (Integer position : indexHits) {
+                sourceHits.add(hitsArray[position]);
             }
-            // todo manage read-only transient properties...
-            bind.invoke(instance, "bind", new Object[] { instance, rebuiltProperties });
+            DefaultUnmarshallingContext unmarshallingContext = createUnmarshallingContext();
+            prefetchReferences(sourceHits, unmarshallingContext);
+            for (Integer position : indexHits) {
+                results[position] = buildResult(hitsArray[position], unmarshallingContext);
+            }
+        }
 
-            results.add(instance);
+        for (Map.Entry<SearchableClassMapping, List<Integer>> entry : databaseHits.entrySet()) {
+            GrailsDomainClass domainClass = entry.getKey().getDomainClass();
+            List<Integer> positions = entry.getValue();
+            List<Object> ids = new ArrayList<Object>(positions.size());
+            for (Integer position : positions) {
+                ids.add(typeConverter.convertIfNecessary(hitsArray[position].id(), domainClass.getIdentifier().getType()));
+            }
+            // GORM getAll() returns the instances in the order of the ids, with null for the missing ones.
+            List<?> instances = (List<?>) InvokerHelper.invokeStaticMethod(domainClass.getClazz(), "getAll", new Object[]{ids});
+            for (int i = 0; i < positions.size(); i++) {
+                Object instance = instances.get(i);
+                if (instance == null) {
+                    LOG.debug("Search hit " + ids.get(i) + "#" + domainClass.getFullName() + " not found in the database, skipped.");
+                }
+                results[positions.get(i)] = instance;
+            }
         }
-        return results;
+
+        List<Object> orderedResults = new ArrayList<Object>(results.length);
+        for (Object result : results) {
+            if (result != null) {
+                orderedResults.add(result);
+            }
+        }
+        return orderedResults;
+    }
+
+    /**
+     * @param hydrate "index" or "database" to hydrate all the hits the same way,
+     *                null to use the hydrate mapping option of the class
+     * @return true if the search hits of the given class are loaded from the database
+     */
+    public boolean isHydratedFromDatabase(SearchableClassMapping scm, String hydrate) {
+        if (hydrate == null) {
+            hydrate = scm.getHydrate() != null ? scm.getHydrate() : getDefaultHydrate();
+        }
+        return SearchableClassMapping.HYDRATE_DATABASE.equals(hydrate);
+    }
+
+    /**
+     * @return true if any of the hits is loaded from the database
+     */
+    public boolean hasHitsHydratedFromDatabase(SearchHits hits, String hydrate) {
+        for (SearchHit hit : hits) {
+            SearchableClassMapping scm = elasticSearchContextHolder.findMappingContextByElasticType(hit.type());
+            if (scm != null && isHydratedFromDatabase(scm, hydrate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds lightweight maps of the hits instead of domain instances: their source (or its projection) and their id.
+     */
+    public List<Map<String, Object>> buildMaps(Iterable<SearchHit> hits) {
+        List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>();
+        for(SearchHit hit : hits) {
+            Map<String, Object> map = new LinkedHashMap<String, Object>(sourceOf(hit));
+            map.put("id", hit.id());
+            maps.add(map);
+        }
+        return maps;
+    }
+
+    /**
+     * @return the source of a hit, or its projection when searching with fields or include/exclude
+     */
+    static Map<String, Object> sourceOf(SearchHit hit) {
+        Map<String, Object> source = hit.getSource();
+        if (source != null) {
+            return source;
+        }
+        Map<String, Object> projection = new LinkedHashMap<String, Object>();
+        if (hit.getFields() == null) {
+            return projection;
+        }
+        for(SearchHitField field : hit.getFields().values()) {
+            if (!PROJECTION_FIELD.equals(field.name())) {
+                projection.put(field.name(), field.getValues().size() == 1 ? field.getValue() : field.getValues());
+            }
+        }
+        SearchHitField partial = hit.field(PROJECTION_FIELD);
+        if (partial != null && partial.getValue() instanceof Map) {
+            //noinspection unchecked
+            projection.putAll((Map<String, Object>) partial.getValue());
+        }
+        return projection;
+    }
+
+    /**
+     * Builds a list of the domain instances of the hits, each one being rebuilt only when it is first accessed.
+     * The raw hits stay available through {@link LazySearchResults#getHit(int)}.
+     */
+    public LazySearchResults buildLazyResults(SearchHits hits) {
+        List<SearchHit> knownHits = new ArrayList<SearchHit>(hits.getHits().length);
+        for(SearchHit hit : hits) {
+            if (getMappingContext(hit) != null) {
+                knownHits.add(hit);
+            }
+        }
+        return new LazySearchResults(this, knownHits);
+    }
+
+    DefaultUnmarshallingContext createUnmarshallingContext() {
+        DefaultUnmarshallingContext unmarshallingContext = new DefaultUnmarshallingContext();
+        // Property editors are stateful, so the request gets its own converter.
+        SimpleTypeConverter bindingConverter = new SimpleTypeConverter();
+        if (customEditorRegistrar != null) {
+            customEditorRegistrar.registerCustomEditors(bindingConverter);
+        }
+        unmarshallingContext.setBindingConverter(bindingConverter);
+        return unmarshallingContext;
+    }
+
+    private SearchableClassMapping getMappingContext(SearchHit hit) {
+        SearchableClassMapping scm = elasticSearchContextHolder.findMappingContextByElasticType(hit.type());
+        if (scm == null) {
+            LOG.warn("Unknown SearchHit: " + hit.id() + "#" + hit.type() + ", domain class name: ");
+        }
+        return scm;
+    }
+
+    /**
+     * Rebuilds the domain instance of a hit of a known type.
+     */
+    Object buildResult(SearchHit hit, DefaultUnmarshallingContext unmarshallingContext) {
+        return buildResult(hit, elasticSearchContextHolder.findMappingContextByElasticType(hit.type()), unmarshallingContext);
+    }
+
+    private Object buildResult(SearchHit hit, SearchableClassMapping scm, DefaultUnmarshallingContext unmarshallingContext) {
+        GrailsDomainClassProperty identifier = scm.getDomainClass().getIdentifier();
+        Object id = typeConverter.convertIfNecessary(hit.id(), identifier.getType());
+        GroovyObject instance = (GroovyObject) scm.getDomainClass().newInstance();
+        instance.setProperty(identifier.getName(), id);
+
+        /*def mapContext = elasticSearchContextHolder.getMappingContext(domainClass.propertyName)?.propertiesMapping*/
+        Map rebuiltProperties = new HashMap();
+        for(Map.Entry<String, Object> entry : sourceOf(hit).entrySet()) {
+            unmarshallingContext.getUnmarshallingStack().push(entry.getKey());
+            rebuiltProperties.put(entry.getKey(),
+                    unmarshallProperty(scm.getDomainClass(), entry.getKey(), entry.getValue(), unmarshallingContext));
+            populateCyclicReference(instance, rebuiltProperties, unmarshallingContext);
+            unmarshallingContext.resetContext();
+        }
+        // todo manage read-only transient properties...
+        bindProperties(instance, scm, rebuiltProperties, unmarshallingContext);
+        return instance;
+    }
+
+    /**
+     * Fetches the searchable references of all the hits with a multi-get, instead of one get per reference.
+     * References of the fetched documents are fetched the same way, up to MAX_PREFETCH_ROUNDS levels.
+     * References of routed or partitioned classes cannot be got without their routing value or partition, they are
+     * searched by id instead.
+     */
+    void prefetchReferences(Iterable<SearchHit> hits, DefaultUnmarshallingContext unmarshallingContext) {
+        Map<String, SearchableClassMapping> pending = new LinkedHashMap<String, SearchableClassMapping>();
+        for(SearchHit hit : hits) {
+            SearchableClassMapping scm = elasticSearchContextHolder.findMappingContextByElasticType(hit.type());
+            if (scm != null) {
+                collectReferences(scm, sourceOf(hit), pending, unmarshallingContext);
+            }
+        }
+        for(int round = 0; round < MAX_PREFETCH_ROUNDS && !pending.isEmpty(); round++) {
+            MultiGetRequestBuilder request = null;
+            Map<SearchableClassMapping, List<String>> searched = new LinkedHashMap<SearchableClassMapping, List<String>>();
+            for(Map.Entry<String, SearchableClassMapping> entry : pending.entrySet()) {
+                SearchableClassMapping scm = entry.getValue();
+                String id = entry.getKey().substring(entry.getKey().indexOf('#') + 1);
+                if (!scm.isGettableById()) {
+                    List<String> ids = searched.get(scm);
+                    if (ids == null) {
+                        ids = new ArrayList<String>();
+                        searched.put(scm, ids);
+                    }
+                    ids.add(id);
+                } else {
+                    if (request == null) {
+                        request = elasticSearchClient.prepareMultiGet();
+                    }
+                    request.add(scm.getIndexName(), scm.getElasticTypeName(), id);
+                }
+            }
+
+            pending = new LinkedHashMap<String, SearchableClassMapping>();
+            if (request != null) {
+                for(MultiGetItemResponse item : request.execute().actionGet()) {
+                    if (item.isFailed()) {
+                        LOG.warn("Failed to fetch reference " + item.getType() + "#" + item.getId() + ": " + item.getFailure().getMessage());
+                        continue;
+                    }
+                    GetResponse get = item.getResponse();
+                    if (get.isExists()) {
+                        addReferenceSource(get.getType(), get.getId(), get.getSourceAsMap(), pending, unmarshallingContext);
+                    }
+                }
+            }
+            for(Map.Entry<SearchableClassMapping, List<String>> entry : searched.entrySet()) {
+                for(SearchHit hit : searchByIds(entry.getKey(), entry.getValue())) {
+                    addReferenceSource(hit.type(), hit.id(), hit.sourceAsMap(), pending, unmarshallingContext);
+                }
+            }
+        }
+    }
+
+    private void addReferenceSource(String type, String id, Map<String, Object> source,
+                                    Map<String, SearchableClassMapping> pending, DefaultUnmarshallingContext unmarshallingContext) {
+        unmarshallingContext.getReferenceSources().put(referenceKey(type, id), source);
+        SearchableClassMapping scm = elasticSearchContextHolder.findMappingContextByElasticType(type);
+        if (scm != null) {
+            collectReferences(scm, source, pending, unmarshallingContext);
+        }
+    }
+
+    /**
+     * Searches documents by id on all the shards of their index (or partitions), for the classes which are not gettable by id.
+     */
+    private SearchHits searchByIds(SearchableClassMapping scm, Collection<String> ids) {
+        return elasticSearchClient.prepareSearch(scm.getIndexName())
+                .setTypes(scm.getElasticTypeName())
+                .setQuery(QueryBuilders.idsQuery(scm.getElasticTypeName()).ids(ids.toArray(new String[ids.size()])))
+                .setSize(ids.size())
+                .execute().actionGet().getHits();
+    }
+
+    /**
+     * Collects the searchable references of a source (including the ones of its components) which were not fetched yet.
+     */
+    private void collectReferences(SearchableClassMapping scm, Map<String, Object> source,
+                                   Map<String, SearchableClassMapping> pending, DefaultUnmarshallingContext unmarshallingContext) {
+        for(Map.Entry<String, Object> entry : source.entrySet()) {
+            SearchableClassPropertyMapping scpm = scm.getPropertyMapping(entry.getKey());
+            if (scpm == null || entry.getValue() == null) {
+                continue;
+            }
+            Collection<?> values = entry.getValue() instanceof Collection ?
+                    (Collection<?>) entry.getValue() : Collections.singletonList(entry.getValue());
+            for(Object value : values) {
+                if (!(value instanceof Map)) {
+                    continue;
+                }
+                Map<?, ?> data = (Map<?, ?>) value;
+                if (data.containsKey("ref")) {
+                    continue;
+                }
+                if (scpm.getReference() != null && data.get("id") != null) {
+                    SearchableClassMapping refScm = elasticSearchContextHolder.getMappingContextByType(scpm.getBestGuessReferenceType());
+                    if (refScm == null) {
+                        continue;
+                    }
+                    String key = referenceKey(refScm.getElasticTypeName(), data.get("id"));
+                    if (!unmarshallingContext.getReferenceSources().containsKey(key)) {
+                        pending.put(key, refScm);
+                    }
+                } else if (scpm.isComponent() && data.get("class") != null) {
+                    SearchableClassMapping componentScm = elasticSearchContextHolder.getMappingContext((String) data.get("class"));
+                    if (componentScm != null) {
+                        //noinspection unchecked
+                        collectReferences(componentScm, (Map<String, Object>) data, pending, unmarshallingContext);
+                    }
+                }
+            }
+        }
+    }
+
+    private String referenceKey(String elasticTypeName, Object id) {
+        return elasticTypeName + "#" + typeConverter.convertIfNecessary(id, String.class);
     }
 
     private void populateCyclicReference(Object instance, Map<String, Object> rebuiltProperties, DefaultUnmarshallingContext unmarshallingContext) {
@@ -165,27 +476,22 @@ public class DomainClassUnmarshaller {
             // Searchable reference.
             if (scpm.getReference() != null) {
                 Class<?> refClass = scpm.getBestGuessReferenceType();
-                GrailsDomainClass refDomainClass = null;
-                for(GrailsClass dClazz : grailsApplication.getArtefacts(DomainClassArtefactHandler.TYPE)) {
-                    if (dClazz.getClazz().equals(refClass)) {
-                        refDomainClass = (GrailsDomainClass) dClazz;
-                        break;
-                    }
-                }
-                if (refDomainClass == null) {
+                SearchableClassMapping refScm = elasticSearchContextHolder.getMappingContextByType(refClass);
+                if (refScm == null) {
                     throw new IllegalStateException("Found reference to non-domain class: " + refClass);
                 }
-                return unmarshallReference(refDomainClass, data, unmarshallingContext);
+                return unmarshallReference(refScm.getDomainClass(), data, unmarshallingContext);
             }
 
-            if (data.containsKey("class") && (Boolean)grailsApplication.getFlatConfig().get("elasticSearch.unmarshallComponents")) {
+            if (data.containsKey("class") && isUnmarshallComponents()) {
                 // Embedded instance.
                 if (!scpm.isComponent()) {
                     // maybe ignore?
                     throw new IllegalStateException("Property " + domainClass.getName() + "." + propertyName +
                                 " is not mapped as [component], but broken search hit found.");
                 }
-                GrailsDomainClass nestedDomainClass = (GrailsDomainClass)
+                SearchableClassMapping nestedScm = elasticSearchContextHolder.getMappingContext((String) data.get("class"));
+                GrailsDomainClass nestedDomainClass = nestedScm != null ? nestedScm.getDomainClass() : (GrailsDomainClass)
                         grailsApplication.getArtefact(DomainClassArtefactHandler.TYPE, (String) data.get("class"));
                 if (domainClass != null) {
                     // Unmarshall 'component' instance.
@@ -241,36 +547,112 @@ public class DomainClassUnmarshaller {
     }
 
 
+    /**
+     * Rebuilds a searchable reference from its prefetched source, or fetches it if it was not prefetched.
+     * A reference is rebuilt only once per request: the same instance is returned for all its occurrences.
+     */
     private Object unmarshallReference(GrailsDomainClass domainClass, Map<String, Object> data, DefaultUnmarshallingContext unmarshallingContext) {
-        // As a simplest scenario recover object directly from ElasticSearch.
-        // todo add first-level caching and cycle ref checking
-        String indexName = elasticSearchContextHolder.getMappingContext(domainClass).getIndexName();
-        String name = elasticSearchContextHolder.getMappingContext(domainClass).getElasticTypeName();
+        SearchableClassMapping scm = elasticSearchContextHolder.getMappingContext(domainClass);
         // A property value is expected to be a map in the form [id:ident]
-        Object id = data.get("id");
-        GetResponse response = elasticSearchClient.get(new GetRequest(indexName)
-                .operationThreaded(false)
-                .type(name)
-                .id(typeConverter.convertIfNecessary(id, String.class)))
-                .actionGet();
-        return unmarshallDomain(domainClass, response.getId(), response.getSourceAsMap(), unmarshallingContext);
-    }
+        String id = typeConverter.convertIfNecessary(data.get("id"), String.class);
+        String key = referenceKey(scm.getElasticTypeName(), id);
+        Object reference = unmarshallingContext.getReferences().get(key);
+        if (reference != null) {
+            return reference;
+        }
 
+        Map<String, Object> source = unmarshallingContext.getReferenceSources().get(key);
+        if (source == null && !scm.isGettableById()) {
+            SearchHits hits = searchByIds(scm, Collections.singletonList(id));
+            if (hits.getHits().length == 0) {
+                LOG.warn("Referenced document " + key + " not found in index " + scm.getIndexName());
+                return null;
+            }
+            source = hits.getAt(0).sourceAsMap();
+        } else if (source == null) {
+            GetResponse response = elasticSearchClient.get(new GetRequest(scm.getIndexName())
+                    .operationThreaded(false)
+                    .type(scm.getElasticTypeName())
+                    .id(id))
+                    .actionGet();
+            if (!response.isExists()) {
+                LOG.warn("Referenced document " + key + " not found in index " + scm.getIndexName());
+                return null;
+            }
+            source = response.getSourceAsMap();
+        }
+        // Registered before its properties are rebuilt, so that references back to it reuse it.
+        GroovyObject instance = newInstance(domainClass, id);
+        unmarshallingContext.getReferences().put(key, instance);
+        populateDomain(instance, domainClass, source, unmarshallingContext);
+        return instance;
+    }
 
-    private Object unmarshallDomain(GrailsDomainClass domainClass, Object providedId, Map<String, Object> data, DefaultUnmarshallingContext unmarshallingContext) {
+    private GroovyObject newInstance(GrailsDomainClass domainClass, Object providedId) {
         GrailsDomainClassProperty identifier = domainClass.getIdentifier();
         Object id = typeConverter.convertIfNecessary(providedId, identifier.getType());
         GroovyObject instance = (GroovyObject) domainClass.newInstance();
         instance.setProperty(identifier.getName(), id);
+        return instance;
+    }
+
+    private Object unmarshallDomain(GrailsDomainClass domainClass, Object providedId, Map<String, Object> data, DefaultUnmarshallingContext unmarshallingContext) {
+        GroovyObject instance = newInstance(domainClass, providedId);
+        populateDomain(instance, domainClass, data, unmarshallingContext);
+        return instance;
+    }
+
+    private void populateDomain(GroovyObject instance, GrailsDomainClass domainClass, Map<String, Object> data, DefaultUnmarshallingContext unmarshallingContext) {
+        Map<String, Object> rebuiltProperties = new HashMap<String, Object>();
         for(Map.Entry<String, Object> entry : data.entrySet()) {
             if (!entry.getKey().equals("class") && !entry.getKey().equals("id")) {
                 unmarshallingContext.getUnmarshallingStack().push(entry.getKey());
-                Object propertyValue = unmarshallProperty(domainClass, entry.getKey(), entry.getValue(), unmarshallingContext);
-                bind.invoke(instance, "bind", new Object[] { instance, Collections.singletonMap(entry.getKey(), propertyValue) });
+                rebuiltProperties.put(entry.getKey(), unmarshallProperty(domainClass, entry.getKey(), entry.getValue(), unmarshallingContext));
                 unmarshallingContext.getUnmarshallingStack().pop();
             }
         }
-        return instance;
+        bindProperties(instance, elasticSearchContextHolder.getMappingContext(domainClass), rebuiltProperties, unmarshallingContext);
+    }
+
+    /**
+     * Sets the rebuilt properties through the binding plan of the class.
+     * The properties which cannot be set directly are bound with the Grails data binding, in a single call.
+     */
+    private void bindProperties(GroovyObject instance, SearchableClassMapping scm, Map<String, Object> rebuiltProperties,
+                                DefaultUnmarshallingContext unmarshallingContext) {
+        Map<String, Object> unbound = rebuiltProperties;
+        if (scm != null) {
+            BindingPlan plan = scm.getBindingPlan();
+            TypeConverter bindingConverter = unmarshallingContext.getBindingConverter();
+            unbound = new HashMap<String, Object>();
+            for(Map.Entry<String, Object> entry : rebuiltProperties.entrySet()) {
+                if (!plan.bind(instance, entry.getKey(), entry.getValue(), bindingConverter)) {
+                    unbound.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        if (!unbound.isEmpty()) {
+            bind.invoke(instance, "bind", new Object[] { instance, unbound });
+        }
+    }
+
+    private boolean isUnmarshallComponents() {
+        Boolean unmarshall = unmarshallComponents;
+        if (unmarshall == null) {
+            unmarshall = Boolean.TRUE.equals(grailsApplication.getFlatConfig().get("elasticSearch.unmarshallComponents"));
+            unmarshallComponents = unmarshall;
+        }
+        return unmarshall;
+    }
+
+    private String getDefaultHydrate() {
+        String hydrate = defaultHydrate;
+        if (hydrate == null) {
+            Object configured = grailsApplication.getFlatConfig().get("elasticSearch.search.hydrate");
+            hydrate = configured instanceof CharSequence ? configured.toString() : SearchableClassMapping.HYDRATE_INDEX;
+            defaultHydrate = hydrate;
+        }
+        return hydrate;
     }
 
     public void setElasticSearchContextHolder(ElasticSearchContextHolder elasticSearchContextHolder) {
@@ -284,4 +666,8 @@ public class DomainClassUnmarshaller {
     public void setElasticSearchClient(Client elasticSearchClient) {
         this.elasticSearchClient = elasticSearchClient;
     }
+
+    public void setCustomEditorRegistrar(PropertyEditorRegistrar customEditorRegistrar) {
+        this.customEditorRegistrar = customEditorRegistrar;
+    }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2002-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.grails.plugins.elasticsearch.conversion.unmarshall;
+
+import org.elasticsearch.search.SearchHit;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list of the domain instances of search hits, each instance being rebuilt when it is first accessed.
+ * The searchable references of the whole page are prefetched on the first access.
+ */
+public class LazySearchResults extends AbstractList<Object> implements RandomAccess {
+
+    private final DomainClassUnmarshaller unmarshaller;
+    private final List<SearchHit> hits;
+    private final Object[] results;
+    private DefaultUnmarshallingContext unmarshallingContext;
+
+    LazySearchResults(DomainClassUnmarshaller unmarshaller, List<SearchHit> hits) {
+        this.unmarshaller = unmarshaller;
+        this.hits = hits;
+        this.results = new Object[hits.size()];
+    }
+
+    @Override
+    public synchronized Object get(int index) {
+        SearchHit hit = hits.get(index);
+        Object result = results[index];
+        if (result == null) {
+            if (unmarshallingContext == null) {
+                unmarshallingContext = unmarshaller.createUnmarshallingContext();
+                unmarshaller.prefetchReferences(hits, unmarshallingContext);
+            }
+            result = unmarshaller.buildResult(hit, unmarshallingContext);
+            results[index] = result;
+        }
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return hits.size();
+    }
+
+    /**
+     * @return the raw hit of an element, without rebuilding its domain instance.
+     */
+    public SearchHit getHit(int index) {
+        return hits.get(index);
+    }
+
+    /**
+     * @return whether the domain instance of an element was already rebuilt.
+     */
+    public synchronized boolean isHydrated(int index) {
+        return results[index] != null;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2002-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.grails.plugins.elasticsearch.index;
+
+/**
+ * Receives the index & delete requests the {@link IndexRequestQueue} gave up on, after they failed
+ * the maximum number of attempts.
+ */
+public interface DeadLetterHandler {
+
+    /**
+     * @param clazz the domain class of the entity
+     * @param id the stringified identifier of the entity
+     * @param delete true for a delete request, false for an index request
+     * @param instance the entity to index, null for a delete request
+     * @param attempts number of failed attempts
+     */
+    void onDeadLetter(Class<?> clazz, String id, boolean delete, Object instance, int attempts);
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2002-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.grails.plugins.elasticsearch.index;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only, memory-mapped journal of the index & delete requests which were not acknowledged by ElasticSearch yet.
+ * <br/>
+ * Only entity keys (class name, id and operation) are recorded, the entities being reloaded from the database when
+ * the journal is replayed at startup. Records are written directly to the mapped file, so they survive a JVM crash.
+ * The journal is rewritten with the outstanding records only when it is full (into a new file, renamed into place),
+ * and reset once everything is acknowledged.
+ * <br/>
+ * Record layout: type (byte), class name length (short), class name (UTF-8), id length (short), id (UTF-8).
+ * A record becomes visible once its type is written, which is done last.
+ */
+public class IndexRequestJournal {
+
+    private static final Logger LOG = Logger.getLogger(IndexRequestJournal.class);
+
+    private static final byte END = 0;
+    private static final byte INDEX = 1;
+    private static final byte DELETE = 2;
+    private static final byte ACK = 3;
+
+    private static final String UTF8 = "UTF-8";
+
+    private String path;
+    private int initialSize = 16 * 1024 * 1024;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Outstanding records, by class name and id.
+     */
+    private Map<String, Entry> outstanding = new LinkedHashMap<String, Entry>();
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public void setInitialSize(int initialSize) {
+        this.initialSize = initialSize;
+    }
+
+    /**
+     * Init method: maps the journal file and loads its outstanding records.
+     */
+    public synchronized void open() throws IOException {
+        File journalFile = new File(path);
+        if (journalFile.getParentFile() != null) {
+            journalFile.getParentFile().mkdirs();
+        }
+        file = new RandomAccessFile(journalFile, "rw");
+        channel = file.getChannel();
+        map((int) Math.max(file.length(), initialSize));
+
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            byte type = buffer.get();
+            Entry entry = type == END ? null : readEntry(type);
+            if (entry == null) {
+                buffer.position(start);
+                break;
+            }
+            if (type == ACK) {
+                outstanding.remove(entry.getKey());
+            } else {
+                outstanding.put(entry.getKey(), entry);
+            }
+        }
+        markEnd();
+        LOG.info("Index request journal " + path + " opened with " + outstanding.size() + " outstanding requests.");
+    }
+
+    /**
+     * Destroy method.
+     */
+    public synchronized void close() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (file != null) {
+            file.close();
+            file = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Records an index or delete request.
+     */
+    public synchronized void append(String className, String id, boolean delete) {
+        Entry entry = new Entry(className, id, delete);
+        Entry previous = outstanding.put(entry.getKey(), entry);
+        if (previous != null) {
+            entry.appends = previous.appends + 1;
+        }
+        write(delete ? DELETE : INDEX, entry);
+    }
+
+    /**
+     * Withdraws a request which was recorded by a rolled back transaction. The record is only acknowledged if no other
+     * request on the entity was recorded since it became outstanding, otherwise it is kept for that other request.
+     */
+    public synchronized void rollback(String className, String id) {
+        Entry entry = outstanding.get(className + '#' + id);
+        if (entry == null) {
+            return;
+        }
+        if (entry.appends > 1) {
+            entry.appends--;
+        } else {
+            acknowledge(className, id);
+        }
+    }
+
+    /**
+     * Records the acknowledgment of the request on an entity. The journal is reset once nothing is outstanding.
+     */
+    public synchronized void acknowledge(String className, String id) {
+        Entry entry = outstanding.remove(className + '#' + id);
+        if (entry == null) {
+            return;
+        }
+        if (outstanding.isEmpty()) {
+            buffer.position(0);
+            markEnd();
+        } else {
+            write(ACK, entry);
+        }
+    }
+
+    /**
+     * @return the requests which were not acknowledged yet.
+     */
+    public synchronized List<Entry> getOutstanding() {
+        return new ArrayList<Entry>(outstanding.values());
+    }
+
+    private void write(byte type, Entry entry) {
+        if (buffer == null) {
+            LOG.warn("Index request journal is closed, " + entry + " not recorded.");
+            return;
+        }
+        byte[] className = toBytes(entry.getClassName());
+        byte[] id = toBytes(entry.getId());
+        if (buffer.remaining() < recordSize(className, id) + 1) {
+            compact();
+        }
+        put(type, className, id);
+    }
+
+    /**
+     * Rewrites the journal with the outstanding records only, into a new file which then replaces the journal:
+     * a crash during the compaction leaves the previous journal intact.
+     * The journal is grown when the outstanding records fill more than half of it, so that compactions stay rare.
+     */
+    private void compact() {
+        int size = 1;
+        for (Entry entry : outstanding.values()) {
+            size += recordSize(toBytes(entry.getClassName()), toBytes(entry.getId()));
+        }
+        int capacity = buffer.capacity();
+        while (size > capacity / 2) {
+            capacity *= 2;
+        }
+
+        File journalFile = new File(path);
+        File compactedFile = new File(path + ".compact");
+        MappedByteBuffer previousBuffer = buffer;
+        RandomAccessFile compacted = null;
+        try {
+            compactedFile.delete();
+            compacted = new RandomAccessFile(compactedFile, "rw");
+            FileChannel compactedChannel = compacted.getChannel();
+            buffer = compactedChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            markEnd();
+            for (Entry entry : outstanding.values()) {
+                put(entry.isDelete() ? DELETE : INDEX, toBytes(entry.getClassName()), toBytes(entry.getId()));
+            }
+            buffer.force();
+            if (!compactedFile.renameTo(journalFile)) {
+                throw new IOException("Unable to rename " + compactedFile + " to " + journalFile);
+            }
+            RandomAccessFile previous = file;
+            file = compacted;
+            channel = compactedChannel;
+            compacted = null;
+            try {
+                previous.close();
+            } catch (IOException e) {
+                LOG.debug("Unable to close the previous index request journal", e);
+            }
+        } catch (IOException e) {
+            buffer = previousBuffer;
+            throw new IllegalStateException("Unable to compact the index request journal " + path, e);
+        } finally {
+            if (compacted != null) {
+                try {
+                    compacted.close();
+                } catch (IOException e) {
+                    LOG.debug("Unable to close " + compactedFile, e);
+                }
+            }
+        }
+    }
+
+    private void put(byte type, byte[] className, byte[] id) {
+        int size = recordSize(className, id);
+        if (buffer.remaining() < size + 1) {
+            remap(Math.max(buffer.capacity() * 2, buffer.position() + size + 1));
+        }
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putShort((short) className.length);
+        buffer.put(className);
+        buffer.putShort((short) id.length);
+        buffer.put(id);
+        markEnd();
+        buffer.put(start, type);
+    }
+
+    private static int recordSize(byte[] className, byte[] id) {
+        return 1 + 2 + className.length + 2 + id.length;
+    }
+
+    private void remap(int size) {
+        int position = buffer.position();
+        try {
+            map(size);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to grow the index request journal " + path + " to " + size + " bytes", e);
+        }
+        buffer.position(position);
+    }
+
+    private void map(int size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void markEnd() {
+        if (buffer.hasRemaining()) {
+            buffer.put(buffer.position(), END);
+        }
+    }
+
+    private Entry readEntry(byte type) {
+        if (type != INDEX && type != DELETE && type != ACK) {
+            return null;
+        }
+        try {
+            String className = readString();
+            String id = readString();
+            if (className == null || id == null) {
+                return null;
+            }
+            return new Entry(className, id, type == DELETE);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private String readString() {
+        int length = buffer.getShort();
+        if (length < 0 || length > buffer.remaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, UTF8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] toBytes(String value) {
+        try {
+            return value.getBytes(UTF8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A journaled request.
+     */
+    public static class Entry {
+        private final String className;
+        private final String id;
+        private final boolean delete;
+        /**
+         * Number of requests recorded on the entity since it became outstanding, not persisted.
+         */
+        private int appends = 1;
+
+        Entry(String className, String id, boolean delete) {
+            this.className = className;
+            this.id = id;
+            this.delete = delete;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public boolean isDelete() {
+            return delete;
+        }
+
+        String getKey() {
+            return className + '#' + id;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "className=" + className +
+                    ", id=" + id +
+                    ", delete=" + delete +
+                    '}';
+        }
+    }
+}
@@ -20,40 +20,103 @@ import org.codehaus.groovy.grails.orm.hibernate.cfg.GrailsHibernateUtil;
 import org.codehaus.groovy.grails.orm.hibernate.support.HibernatePersistenceContextInterceptor;
 import org.codehaus.groovy.grails.support.PersistenceContextInterceptor;
 import org.codehaus.groovy.runtime.InvokerHelper;
+import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.grails.plugins.elasticsearch.ElasticSearchContextHolder;
 import org.grails.plugins.elasticsearch.conversion.JSONDomainFactory;
 import org.grails.plugins.elasticsearch.exception.IndexException;
 import org.grails.plugins.elasticsearch.mapping.SearchableClassMapping;
+import org.grails.plugins.elasticsearch.mapping.SearchableClassMappingConfigurator;
+import org.grails.plugins.elasticsearch.search.QueryResultCache;
 import org.hibernate.LockMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.springframework.beans.SimpleTypeConverter;
+import org.springframework.beans.TypeConverter;
+import org.springframework.orm.hibernate3.HibernateCallback;
+import org.springframework.orm.hibernate3.HibernateTemplate;
 import org.springframework.orm.hibernate3.SessionFactoryUtils;
 import org.springframework.util.Assert;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Holds objects to be indexed.
  * <br/>
  * It looks like we need to keep object references in memory until they indexed properly.
- * If indexing fails, all failed objects are retried. Still no support for max number of retries (todo)
- * NOTE: if cluster state is RED, everything will probably fail and keep retrying forever.
+ * If indexing fails, all failed objects are retried with an exponential backoff, up to a max number of attempts
+ * after which they are handed to the {@link DeadLetterHandler}.
+ * After too many consecutive bulk failures (ie cluster state is RED), the circuit breaker opens: pending requests are
+ * kept in the queue until the cluster health is no longer RED.
  * NOTE: This is shared class, so need to be thread-safe.
+ * <br/>
+ * The queue may be bounded, in number of requests and in estimated bytes. Both the pending requests and the ones
+ * waiting for their bulk response are counted, and the {@link BackpressurePolicy} decides what happens to producers
+ * when it is full.
+ * <br/>
+ * The requests are sent by bulks of at most {@link #setMaxBulkActions(int) maxBulkActions} actions and
+ * {@link #setMaxBulkBytes(long) maxBulkBytes} bytes, with at most {@link #setMaxConcurrentBulks(int) maxConcurrentBulks}
+ * bulks waiting for their response at once.
  */
 public class IndexRequestQueue {
 
     private static final Logger LOG = Logger.getLogger(IndexRequestQueue.class);
 
+    /**
+     * Size assumed for a document until some have actually been marshalled.
+     */
+    private static final long DEFAULT_DOCUMENT_SIZE = 1024;
+
+    /**
+     * Number of documents marshalled at once when the number of actions per bulk request is unbounded.
+     */
+    private static final int DEFAULT_MARSHALLING_CHUNK_SIZE = 1000;
+
+    /**
+     * Name of the thread running the retries and the cluster health checks.
+     */
+    private static final String RETRY_THREAD_NAME = "elasticsearch-index-retry";
+
+    /**
+     * What to do when a request is added to a full queue.
+     */
+    public enum BackpressurePolicy {
+        /** Wait for room, up to the block timeout. */
+        BLOCK,
+        /** Execute the pending requests on the caller thread, then wait for room up to the block timeout. */
+        FLUSH,
+        /** Throw an IndexException. */
+        REJECT
+    }
+
     private JSONDomainFactory jsonDomainFactory;
     private ElasticSearchContextHolder elasticSearchContextHolder;
     private Client elasticSearchClient;
@@ -71,6 +134,129 @@ public class IndexRequestQueue {
 
     List<OperationBatch> operationBatchList = new LinkedList<OperationBatch>();
 
+    /**
+     * Number of requests sent to ElasticSearch and not acknowledged yet.
+     */
+    private int inFlightRequests;
+
+    /**
+     * Max number of pending & in-flight requests. 0 for unbounded.
+     */
+    private int maxQueueSize;
+
+    /**
+     * Max estimated size in bytes of pending & in-flight requests. 0 for unbounded.
+     */
+    private long maxQueueBytes;
+
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+
+    /**
+     * Max time (in milliseconds) a producer waits for room with the BLOCK and FLUSH policies.
+     */
+    private long blockTimeout = 30000;
+
+    /**
+     * Moving average of the marshalled documents size, used to estimate the size of the queue.
+     * Guarded by the queue monitor.
+     */
+    private long averageDocumentSize = DEFAULT_DOCUMENT_SIZE;
+
+    /**
+     * Partitions still holding a previous version of documents moved to another partition, by entity.
+     * Guarded by the queue monitor.
+     */
+    private Map<IndexEntityKey, Set<String>> previousPartitions = new HashMap<IndexEntityKey, Set<String>>();
+
+    /**
+     * Previous routing values of documents whose routing value changed, by entity: the shards they route to may
+     * still hold a previous version of the documents. Guarded by the queue monitor.
+     */
+    private Map<IndexEntityKey, Set<String>> previousRoutings = new HashMap<IndexEntityKey, Set<String>>();
+
+    /**
+     * Number of failed attempts of the requests being retried.
+     */
+    private Map<IndexEntityKey, Integer> failedAttempts = new HashMap<IndexEntityKey, Integer>();
+
+    /**
+     * Max number of attempts for a request before it is handed to the dead letter handler.
+     */
+    private int maxAttempts = 10;
+
+    /**
+     * Delay (in milliseconds) before the first retry, doubled on each attempt up to retryMaxDelay.
+     */
+    private long retryInitialDelay = 100;
+
+    private long retryMaxDelay = 60000;
+
+    private DeadLetterHandler deadLetterHandler;
+
+    /**
+     * Number of consecutive failed bulk requests opening the circuit breaker.
+     */
+    private int circuitBreakerThreshold = 5;
+
+    /**
+     * Delay (in milliseconds) between two cluster health checks while the circuit breaker is open.
+     */
+    private long circuitBreakerResetTimeout = 30000;
+
+    private int consecutiveFailures;
+
+    private boolean circuitOpen;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Optional journal of the requests which were not acknowledged yet.
+     */
+    private IndexRequestJournal journal;
+
+    private TypeConverter typeConverter = new SimpleTypeConverter();
+
+    private final Random random = new Random();
+
+    /**
+     * Max number of actions in a bulk request. 0 for unbounded.
+     */
+    private int maxBulkActions = 1000;
+
+    /**
+     * Max estimated size in bytes of a bulk request. 0 for unbounded.
+     */
+    private long maxBulkBytes = 5 * 1024 * 1024;
+
+    /**
+     * Max number of bulk requests waiting for their response. 0 for unbounded.
+     */
+    private int maxConcurrentBulks = 4;
+
+    private Semaphore bulkPermits;
+
+    /**
+     * Number of threads marshalling the documents of a flush, each with its own read-only session.
+     */
+    private int marshallingThreads = 1;
+
+    private ExecutorService marshallingExecutor;
+
+    /**
+     * Optional cache of search responses, invalidated for the indices written by each bulk request.
+     */
+    private QueryResultCache queryResultCache;
+
+    /**
+     * Creates the partitions of the time-partitioned classes on demand.
+     */
+    private SearchableClassMappingConfigurator searchableClassMappingConfigurator;
+
+    /**
+     * Indices written instead of an index while it is rebuilt, by index name.
+     */
+    private final ConcurrentMap<String, String[]> writeIndices = new ConcurrentHashMap<String, String[]>();
+
     /**
      * No-args constructor.
      */
@@ -93,21 +279,348 @@ public class IndexRequestQueue {
         this.sessionFactory = sessionFactory;
     }
 
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    public void setMaxQueueBytes(long maxQueueBytes) {
+        this.maxQueueBytes = maxQueueBytes;
+    }
+
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setRetryInitialDelay(long retryInitialDelay) {
+        this.retryInitialDelay = retryInitialDelay;
+    }
+
+    public void setRetryMaxDelay(long retryMaxDelay) {
+        this.retryMaxDelay = retryMaxDelay;
+    }
+
+    public void setDeadLetterHandler(DeadLetterHandler deadLetterHandler) {
+        this.deadLetterHandler = deadLetterHandler;
+    }
+
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    public void setCircuitBreakerResetTimeout(long circuitBreakerResetTimeout) {
+        this.circuitBreakerResetTimeout = circuitBreakerResetTimeout;
+    }
+
+    public void setJournal(IndexRequestJournal journal) {
+        this.journal = journal;
+    }
+
+    public void setMaxBulkActions(int maxBulkActions) {
+        this.maxBulkActions = maxBulkActions;
+    }
+
+    public void setMaxBulkBytes(long maxBulkBytes) {
+        this.maxBulkBytes = maxBulkBytes;
+    }
+
+    public synchronized void setMaxConcurrentBulks(int maxConcurrentBulks) {
+        this.maxConcurrentBulks = maxConcurrentBulks;
+        this.bulkPermits = maxConcurrentBulks > 0 ? new Semaphore(maxConcurrentBulks) : null;
+    }
+
+    public void setMarshallingThreads(int marshallingThreads) {
+        this.marshallingThreads = marshallingThreads;
+    }
+
+    public void setQueryResultCache(QueryResultCache queryResultCache) {
+        this.queryResultCache = queryResultCache;
+    }
+
+    public void setSearchableClassMappingConfigurator(SearchableClassMappingConfigurator searchableClassMappingConfigurator) {
+        this.searchableClassMappingConfigurator = searchableClassMappingConfigurator;
+    }
+
+    /**
+     * Redirects the writes to an index while it is rebuilt: to both the index and the new one while the new one is
+     * loaded, then to the new one only while the alias is swapped.
+     * Documents written to another index than the own index of their class are versioned with the version of their
+     * instance, so that a stale instance loaded from the database never overwrites a newer document.
+     *
+     * @param index   the rebuilt index
+     * @param indices the indices written instead
+     */
+    public void setWriteIndices(String index, String... indices) {
+        writeIndices.put(index, indices);
+    }
+
+    /**
+     * Writes to the index itself again, once it is rebuilt.
+     */
+    public void clearWriteIndices(String index) {
+        writeIndices.remove(index);
+    }
+
+    private String[] getWriteIndices(String index) {
+        String[] indices = writeIndices.get(index);
+        return indices != null ? indices : new String[]{index};
+    }
+
+    public IndexRequestJournal getJournal() {
+        return journal;
+    }
+
+    public synchronized boolean isCircuitOpen() {
+        return circuitOpen;
+    }
+
     public void addIndexRequest(Object instance) {
         addIndexRequest(instance, null);
     }
 
     public void addIndexRequest(Object instance, Serializable id) {
+        awaitCapacity();
+        IndexEntityKey key = id == null ? new IndexEntityKey(instance) :
+                new IndexEntityKey(id.toString(), GrailsHibernateUtil.unwrapIfProxy(instance).getClass());
+        checkRouting(key.getClazz(), instance);
+        // Journaled and queued at once, so that a batch completing in between cannot acknowledge the new record
         synchronized (this) {
-            IndexEntityKey key = id == null ? new IndexEntityKey(instance) :
-                    new IndexEntityKey(id.toString(), GrailsHibernateUtil.unwrapIfProxy(instance).getClass());
+            if (journal != null) {
+                journal.append(key.getClazz().getName(), key.getId(), false);
+            }
             indexRequests.put(key, GrailsHibernateUtil.unwrapIfProxy(instance));
         }
     }
 
+    /**
+     * Records that an instance of a time-partitioned class was moved to another partition by an update, so that
+     * it is deleted from its previous partition when it is indexed again.
+     *
+     * @param previousIndex the partition the instance was indexed in
+     */
+    public void addPartitionMove(Object instance, String previousIndex) {
+        IndexEntityKey key = new IndexEntityKey(instance);
+        if (previousIndex.equals(key.getIndex())) {
+            return;
+        }
+        synchronized (this) {
+            Set<String> partitions = previousPartitions.get(key);
+            if (partitions == null) {
+                partitions = new HashSet<String>();
+                previousPartitions.put(key, partitions);
+            }
+            partitions.add(previousIndex);
+        }
+    }
+
+    /**
+     * Records that the routing value of an instance of a routed class was changed by an update, so that it is deleted
+     * from the shard of its previous routing value when it is indexed again.
+     *
+     * @param previousRouting the routing value the instance was indexed with
+     */
+    public void addRoutingMove(Object instance, String previousRouting) {
+        IndexEntityKey key = new IndexEntityKey(instance);
+        if (previousRouting.equals(key.getRouting())) {
+            return;
+        }
+        synchronized (this) {
+            Set<String> routings = previousRoutings.get(key);
+            if (routings == null) {
+                routings = new HashSet<String>();
+                previousRoutings.put(key, routings);
+            }
+            routings.add(previousRouting);
+        }
+    }
+
     public void addDeleteRequest(Object instance) {
+        awaitCapacity();
+        IndexEntityKey key = new IndexEntityKey(instance);
+        checkRouting(key.getClazz(), instance);
         synchronized (this) {
-            deleteRequests.add(new IndexEntityKey(instance));
+            if (journal != null) {
+                journal.append(key.getClazz().getName(), key.getId(), true);
+            }
+            deleteRequests.add(key);
+        }
+    }
+
+    /**
+     * Fails fast on an instance of a routed class without routing value: the _routing of its type is required, so its
+     * bulk item would fail on every attempt.
+     */
+    private void checkRouting(Class<?> clazz, Object instance) {
+        SearchableClassMapping scm = elasticSearchContextHolder.getMappingContextByType(clazz);
+        if (scm != null && scm.getRouting() != null && scm.getRoutingValue(instance) == null) {
+            throw new IndexException("Instance of " + clazz.getName() + " has no value for its routing property [" +
+                    scm.getRouting() + "], it cannot be indexed.");
+        }
+    }
+
+    /**
+     * Re-sends the requests the journal holds from a previous run, which were never acknowledged.
+     * Entities are reloaded from the database: the existing ones are indexed, the others deleted from the index.
+     */
+    public void replayJournal() {
+        if (journal == null) {
+            return;
+        }
+        final List<IndexRequestJournal.Entry> entries = journal.getOutstanding();
+        if (entries.isEmpty()) {
+            return;
+        }
+        LOG.info("Replaying " + entries.size() + " unacknowledged index requests from the journal.");
+        new HibernateTemplate(sessionFactory).executeWithNewSession(new HibernateCallback<Object>() {
+            public Object doInHibernate(Session session) {
+                for (IndexRequestJournal.Entry entry : entries) {
+                    SearchableClassMapping scm = elasticSearchContextHolder.getMappingContext(entry.getClassName());
+                    if (scm == null || !scm.isRoot()) {
+                        LOG.warn("Ignoring journaled request on " + entry.getClassName() + ", not a root searchable class anymore.");
+                        journal.acknowledge(entry.getClassName(), entry.getId());
+                        continue;
+                    }
+                    Class<?> clazz = scm.getDomainClass().getClazz();
+                    Object id = typeConverter.convertIfNecessary(entry.getId(), scm.getDomainClass().getIdentifier().getType());
+                    Object instance = session.get(clazz, (Serializable) id);
+                    if (instance != null) {
+                        addIndexRequest(instance);
+                    } else if (!scm.isGettableById()) {
+                        // The routing value or partition of a deleted instance is unknown: its document is looked up on all shards
+                        deleteById(scm, entry.getId());
+                        journal.acknowledge(entry.getClassName(), entry.getId());
+                    } else {
+                        synchronized (IndexRequestQueue.this) {
+                            deleteRequests.add(new IndexEntityKey(entry.getId(), clazz));
+                        }
+                    }
+                }
+                executeRequests(session);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Acknowledges a request in the journal, unless the entity was queued again in the meantime.
+     */
+    private synchronized void acknowledge(IndexEntityKey key) {
+        if (journal == null) {
+            return;
+        }
+        if (indexRequests.containsKey(key) || deleteRequests.contains(key)) {
+            return;
+        }
+        journal.acknowledge(key.getClazz().getName(), key.getId());
+    }
+
+    /**
+     * Applies the backpressure policy if the queue is full.
+     * Pending requests are executed by a blocked producer when they alone fill the queue, as nobody else
+     * would release room otherwise, unless the circuit breaker is open: the producer then waits for it to close,
+     * up to the block timeout.
+     */
+    private void awaitCapacity() {
+        if (maxQueueSize <= 0 && maxQueueBytes <= 0) {
+            return;
+        }
+        switch (backpressurePolicy) {
+            case REJECT:
+                synchronized (this) {
+                    if (isFull()) {
+                        throw new IndexException("Index request queue is full (" + describeUsage() + "), request rejected.");
+                    }
+                }
+                break;
+            case FLUSH:
+                boolean full;
+                synchronized (this) {
+                    full = isFull();
+                }
+                if (full) {
+                    executeRequests();
+                    // The flushed requests count until their bulk completes, and stay queued while the circuit breaker
+                    // is open: the producer then waits for room like with the BLOCK policy
+                    long flushDeadline = System.currentTimeMillis() + blockTimeout;
+                    synchronized (this) {
+                        while (isFull()) {
+                            waitForRoom(flushDeadline);
+                        }
+                    }
+                }
+                break;
+            case BLOCK:
+            default:
+                long deadline = System.currentTimeMillis() + blockTimeout;
+                while (true) {
+                    boolean flush;
+                    synchronized (this) {
+                        if (!isFull()) {
+                            return;
+                        }
+                        // While the circuit breaker is open, flushing would keep the requests queued: wait for it to close
+                        flush = !circuitOpen && (!indexRequests.isEmpty() || !deleteRequests.isEmpty());
+                        if (!flush) {
+                            waitForRoom(deadline);
+                        }
+                    }
+                    if (flush) {
+                        executeRequests();
+                    }
+                }
+        }
+    }
+
+    /**
+     * Waits to be notified that room may have been released, failing once the deadline is passed.
+     * Must be called while holding the queue monitor.
+     */
+    private void waitForRoom(long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new IndexException("Timed out after " + blockTimeout +
+                    "ms waiting for room in the index request queue (" + describeUsage() + ").");
+        }
+        try {
+            wait(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IndexException("Interrupted while waiting for room in the index request queue.", e);
+        }
+    }
+
+    private synchronized boolean isFull() {
+        int size = indexRequests.size() + deleteRequests.size() + inFlightRequests;
+        return (maxQueueSize > 0 && size >= maxQueueSize)
+                || (maxQueueBytes > 0 && size * averageDocumentSize >= maxQueueBytes);
+    }
+
+    private synchronized String describeUsage() {
+        int size = indexRequests.size() + deleteRequests.size() + inFlightRequests;
+        return size + " requests, ~" + (size * averageDocumentSize) + " bytes";
+    }
+
+    /**
+     * Adds the size of a marshalled document to the moving average.
+     */
+    private synchronized void recordDocumentSize(int size) {
+        averageDocumentSize += (size - averageDocumentSize) / 16;
+    }
+
+    /**
+     * Updates the count of in-flight requests and wakes up blocked producers if room was released.
+     */
+    private synchronized void updateInFlightRequests(int delta) {
+        inFlightRequests += delta;
+        if (delta < 0) {
+            notifyAll();
         }
     }
 
@@ -119,6 +632,25 @@ public class IndexRequestQueue {
         }
     }
 
+    /**
+     * @return the source of the index request of a domain instance.
+     */
+    private BytesReference toSource(Object instance) {
+        try {
+            return jsonDomainFactory.buildSource(instance);
+        } catch (Exception e) {
+            throw new IndexException("Failed to marshall domain instance [" + instance + "]", e);
+        }
+    }
+
+    private String sourceAsString(BytesReference source) {
+        try {
+            return XContentHelper.convertToJson(source, false);
+        } catch (IOException e) {
+            return "[" + source.length() + " bytes]";
+        }
+    }
+
     public OperationBatch executeRequests() {
         return executeRequests(null);
     }
@@ -126,12 +658,10 @@ public class IndexRequestQueue {
     /**
      * Execute pending requests and clear both index & delete pending queues.
      *
-     * @return Returns an OperationBatch instance which is a listener to the last executed bulk operation. Returns NULL
-     *         if there were no operations done on the method call.
+     * @return Returns an OperationBatch instance which is a listener to the last executed bulk operation, and completes
+     *         after the previous ones of the same call. Returns NULL if there were no operations done on the method call.
      */
     public OperationBatch executeRequests(Session session) {
-        boolean isNewSession = null == session;
-        PersistenceContextInterceptor persistenceInterceptor = null;
         Map<IndexEntityKey, Object> toIndex = new LinkedHashMap<IndexEntityKey, Object>();
         Set<IndexEntityKey> toDelete = new HashSet<IndexEntityKey>();
 
@@ -139,12 +669,62 @@ public class IndexRequestQueue {
 
         // Copy existing queue to ensure we are interfering with incoming requests.
         synchronized (this) {
+            if (circuitOpen) {
+                LOG.debug("Circuit breaker is open, requests are kept in the queue.");
+                return null;
+            }
             toIndex.putAll(indexRequests);
             toDelete.addAll(deleteRequests);
             indexRequests.clear();
             deleteRequests.clear();
+            notifyAll();
+        }
+
+        return executeRequests(toIndex, toDelete, session);
+    }
+
+    /**
+     * Execute index & delete requests for the specified instances, without going through the pending queues.
+     * Used by bulk operations running in their own thread and session, so that their instances are marshalled
+     * by the thread that loaded them. Failed requests are retried through the pending queues.
+     *
+     * @param instancesToIndex instances to index
+     * @param instancesToDelete instances to delete
+     * @param session the session the instances are attached to, or null to use a new one
+     * @return Returns an OperationBatch instance which is a listener to the executed bulk operation. Returns NULL
+     *         if there were no operations to do.
+     */
+    public OperationBatch executeRequests(Collection<?> instancesToIndex, Collection<?> instancesToDelete, Session session) {
+        return executeRequests(instancesToIndex, instancesToDelete, session, null);
+    }
+
+    /**
+     * Same as {@link #executeRequests(Collection, Collection, Session)}, writing into the given index instead of the
+     * index of each instance. Used to load an index being rebuilt.
+     *
+     * @param into the index to write into, or null for the index of each instance
+     */
+    public OperationBatch executeRequests(Collection<?> instancesToIndex, Collection<?> instancesToDelete, Session session, String into) {
+        Map<IndexEntityKey, Object> toIndex = new LinkedHashMap<IndexEntityKey, Object>();
+        Set<IndexEntityKey> toDelete = new HashSet<IndexEntityKey>();
+        for (Object instance : instancesToIndex) {
+            toIndex.put(new IndexEntityKey(instance), GrailsHibernateUtil.unwrapIfProxy(instance));
         }
+        for (Object instance : instancesToDelete) {
+            toDelete.add(new IndexEntityKey(instance));
+        }
+
+        awaitCircuitClosed();
+        cleanOperationBatchList();
 
+        return executeRequests(toIndex, toDelete, session, into);
+    }
+
+    private OperationBatch executeRequests(Map<IndexEntityKey, Object> toIndex, Set<IndexEntityKey> toDelete, Session session) {
+        return executeRequests(toIndex, toDelete, session, null);
+    }
+
+    private OperationBatch executeRequests(Map<IndexEntityKey, Object> toIndex, Set<IndexEntityKey> toDelete, Session session, String into) {
         // If there are domain instances that are both in the index requests & delete requests list,
         // they are directly deleted.
         toIndex.keySet().removeAll(toDelete);
@@ -156,42 +736,93 @@ public class IndexRequestQueue {
 
         BulkRequestBuilder bulkRequestBuilder = elasticSearchClient.prepareBulk();
         //bulkRequestBuilder.setRefresh(true);
+        Map<IndexEntityKey, Object> bulkToIndex = new LinkedHashMap<IndexEntityKey, Object>();
+        Set<IndexEntityKey> bulkToDelete = new HashSet<IndexEntityKey>();
+        // Positions of the externally versioned requests in the bulk request, for which a version conflict is expected
+        Set<Integer> bulkVersionedItems = new HashSet<Integer>();
+        OperationBatch completeListener = null;
 
-        // Execute index requests
-        for (Map.Entry<IndexEntityKey, Object> entry : toIndex.entrySet()) {
-            SearchableClassMapping scm = elasticSearchContextHolder.getMappingContextByType(entry.getKey().getClazz());
-            if (isNewSession) {
-                persistenceInterceptor = createInterceptor();
-                session = SessionFactoryUtils.getSession(sessionFactory, true);
+        // Execute index requests, marshalling the documents of one bulk request at a time
+        List<Map.Entry<IndexEntityKey, Object>> entries = new ArrayList<Map.Entry<IndexEntityKey, Object>>(toIndex.entrySet());
+        int chunkSize = maxBulkActions > 0 ? maxBulkActions : DEFAULT_MARSHALLING_CHUNK_SIZE;
+        for (int from = 0; from < entries.size(); from += chunkSize) {
+            List<Map.Entry<IndexEntityKey, Object>> chunk = entries.subList(from, Math.min(from + chunkSize, entries.size()));
+            List<Object> entities = new ArrayList<Object>(chunk.size());
+            for (Map.Entry<IndexEntityKey, Object> entry : chunk) {
+                entities.add(entry.getValue());
             }
-            try {
-                Object entity = entry.getValue();
-
-                // If this not a transient instance, reattach it to the session
-                if (session.contains(entity)) {
-                    session.lock(entity, LockMode.NONE);
-                    LOG.debug("Reattached entity to session");
+            Iterator<BytesReference> documentIterator = marshall(entities, session).iterator();
+            for (Map.Entry<IndexEntityKey, Object> entry : chunk) {
+                SearchableClassMapping scm = elasticSearchContextHolder.getMappingContextByType(entry.getKey().getClazz());
+                BytesReference source = documentIterator.next();
+                recordDocumentSize(source.length());
+                String ownIndex = scm.getIndexName(entry.getValue());
+                String index = into != null ? into : ownIndex;
+                String routing = scm.getRoutingValue(entry.getValue());
+                if (scm.getRouting() != null && routing == null) {
+                    // Its bulk item would fail on every attempt, as the _routing of the type is required
+                    LOG.error("Not indexing " + entry.getKey().getClazz().getName() + " of id " + entry.getKey().getId() +
+                            ", its routing property [" + scm.getRouting() + "] is null.");
+                    acknowledge(entry.getKey());
+                    continue;
+                }
+                // The document may also be held by the shards of its previous routing values
+                Set<String> moveRoutings = new LinkedHashSet<String>();
+                if (routing != null) {
+                    moveRoutings.add(routing);
+                }
+                Set<String> previousRoutingValues = into == null ? getPreviousRoutings(entry.getKey()) : Collections.<String>emptySet();
+                moveRoutings.addAll(previousRoutingValues);
+                if (into == null && scm.isPartitioned()) {
+                    searchableClassMappingConfigurator.ensurePartition(scm, index);
+                    // Delete the document from the partitions it was moved from, in the same bulk request
+                    for (String previousIndex : getPreviousPartitions(entry.getKey())) {
+                        if (!previousIndex.equals(index)) {
+                            for (String moveRouting : moveRoutings.isEmpty() ? Collections.<String>singleton(null) : moveRoutings) {
+                                bulkRequestBuilder.add(elasticSearchClient.prepareDelete()
+                                        .setIndex(previousIndex)
+                                        .setType(scm.getElasticTypeName())
+                                        .setId(entry.getKey().getId())
+                                        .setRouting(moveRouting));
+                            }
+                        }
+                    }
                 }
 
-                XContentBuilder json = toJSON(entity);
-
-                bulkRequestBuilder.add(
-                        elasticSearchClient.prepareIndex()
-                                .setIndex(scm.getIndexName())
-                                .setType(scm.getElasticTypeName())
-                                .setId(entry.getKey().getId()) // TODO : Composite key ?
-                                .setSource(json)
-                );
-                if (LOG.isDebugEnabled()) {
-                    try {
-                        LOG.debug("Indexing " + entry.getKey().getClazz() + "(index:" + scm.getIndexName() + ",type:" + scm.getElasticTypeName() +
-                                ") of id " + entry.getKey().getId() + " and source " + json.string());
-                    } catch (IOException e) {
+                for (String writeIndex : getWriteIndices(index)) {
+                    // Deleted before the indexing, as the previous routing value may lead to the same shard
+                    for (String previousRouting : previousRoutingValues) {
+                        if (!previousRouting.equals(routing)) {
+                            bulkRequestBuilder.add(elasticSearchClient.prepareDelete()
+                                    .setIndex(writeIndex)
+                                    .setType(scm.getElasticTypeName())
+                                    .setId(entry.getKey().getId())
+                                    .setRouting(previousRouting));
+                        }
                     }
+                    IndexRequestBuilder request = elasticSearchClient.prepareIndex()
+                            .setIndex(writeIndex)
+                            .setType(scm.getElasticTypeName())
+                            .setId(entry.getKey().getId()) // TODO : Composite key ?
+                            .setRouting(routing)
+                            .setSource(source);
+                    Long version = scm.getVersionValue(entry.getValue());
+                    if (version != null && !writeIndex.equals(ownIndex)) {
+                        request.setVersion(version).setVersionType(VersionType.EXTERNAL);
+                        bulkVersionedItems.add(bulkRequestBuilder.numberOfActions());
+                    }
+                    bulkRequestBuilder.add(request);
+                }
+                bulkToIndex.put(entry.getKey(), entry.getValue());
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Indexing " + entry.getKey().getClazz() + "(index:" + index + ",type:" + scm.getElasticTypeName() +
+                            ") of id " + entry.getKey().getId() + " and source " + sourceAsString(source));
                 }
-            } finally {
-                if (null != persistenceInterceptor) {
-                    persistenceInterceptor.destroy();
+                if (isBulkFull(bulkRequestBuilder)) {
+                    completeListener = executeBulk(bulkRequestBuilder, bulkToIndex, bulkToDelete, bulkVersionedItems, completeListener);
+                    bulkRequestBuilder = elasticSearchClient.prepareBulk();
+                    bulkToIndex = new LinkedHashMap<IndexEntityKey, Object>();
+                    bulkVersionedItems = new HashSet<Integer>();
                 }
             }
         }
@@ -199,32 +830,379 @@ public class IndexRequestQueue {
         // Execute delete requests
         for (IndexEntityKey key : toDelete) {
             SearchableClassMapping scm = elasticSearchContextHolder.getMappingContextByType(key.getClazz());
+            String index = key.getIndex() != null ? key.getIndex() : scm.getIndexName();
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Deleting object from index " + scm.getIndexName() + " and type " + scm.getElasticTypeName() + " and ID " + key.getId());
+                LOG.debug("Deleting object from index " + index + " and type " + scm.getElasticTypeName() + " and ID " + key.getId());
             }
-            bulkRequestBuilder.add(
-                    elasticSearchClient.prepareDelete()
-                            .setIndex(scm.getIndexName())
+            for (String previousIndex : getPreviousPartitions(key)) {
+                if (!previousIndex.equals(index)) {
+                    bulkRequestBuilder.add(elasticSearchClient.prepareDelete()
+                            .setIndex(previousIndex)
                             .setType(scm.getElasticTypeName())
                             .setId(key.getId())
-            );
+                            .setRouting(key.getRouting()));
+                }
+            }
+            for (String writeIndex : getWriteIndices(index)) {
+                // A document never indexed again since its routing value changed is still on the previous shard
+                for (String previousRouting : getPreviousRoutings(key)) {
+                    if (!previousRouting.equals(key.getRouting())) {
+                        bulkRequestBuilder.add(elasticSearchClient.prepareDelete()
+                                .setIndex(writeIndex)
+                                .setType(scm.getElasticTypeName())
+                                .setId(key.getId())
+                                .setRouting(previousRouting));
+                    }
+                }
+                DeleteRequestBuilder request = elasticSearchClient.prepareDelete()
+                        .setIndex(writeIndex)
+                        .setType(scm.getElasticTypeName())
+                        .setId(key.getId())
+                        .setRouting(key.getRouting());
+                if (key.getVersion() != null && !writeIndex.equals(index)) {
+                    // Above the version of the document, so that the delete is applied and older versions are rejected
+                    request.setVersion(key.getVersion() + 1).setVersionType(VersionType.EXTERNAL);
+                    bulkVersionedItems.add(bulkRequestBuilder.numberOfActions());
+                }
+                bulkRequestBuilder.add(request);
+            }
+            bulkToDelete.add(key);
+            if (isBulkFull(bulkRequestBuilder)) {
+                completeListener = executeBulk(bulkRequestBuilder, bulkToIndex, bulkToDelete, bulkVersionedItems, completeListener);
+                bulkRequestBuilder = elasticSearchClient.prepareBulk();
+                bulkToIndex = new LinkedHashMap<IndexEntityKey, Object>();
+                bulkToDelete = new HashSet<IndexEntityKey>();
+                bulkVersionedItems = new HashSet<Integer>();
+            }
         }
 
-        // Perform bulk request
-        OperationBatch completeListener = null;
+        // Perform the last bulk request
         if (bulkRequestBuilder.numberOfActions() > 0) {
-            synchronized(this) {
-                completeListener = new OperationBatch(0, toIndex, toDelete);
-                operationBatchList.add(completeListener);
+            completeListener = executeBulk(bulkRequestBuilder, bulkToIndex, bulkToDelete, bulkVersionedItems, completeListener);
+        }
+
+        return completeListener;
+    }
+
+    private synchronized Set<String> getPreviousPartitions(IndexEntityKey key) {
+        Set<String> partitions = previousPartitions.get(key);
+        return partitions == null ? Collections.<String>emptySet() : new HashSet<String>(partitions);
+    }
+
+    private synchronized Set<String> getPreviousRoutings(IndexEntityKey key) {
+        Set<String> routings = previousRoutings.get(key);
+        return routings == null ? Collections.<String>emptySet() : new HashSet<String>(routings);
+    }
+
+    /**
+     * Forgets the previous routing values of a document, once it was deleted from their shards.
+     */
+    private synchronized void removePreviousRoutings(IndexEntityKey key) {
+        previousRoutings.remove(key);
+    }
+
+    /**
+     * Forgets a previous partition of a moved document, once it was deleted from it.
+     */
+    private synchronized void removePreviousPartition(IndexEntityKey key, String partition) {
+        Set<String> partitions = previousPartitions.get(key);
+        if (partitions != null && partitions.remove(partition) && partitions.isEmpty()) {
+            previousPartitions.remove(key);
+        }
+    }
+
+    /**
+     * Deletes a document whose routing value or partition is unknown, with a delete by query on its id.
+     */
+    private void deleteById(SearchableClassMapping scm, String id) {
+        try {
+            elasticSearchClient.prepareDeleteByQuery(scm.getIndexName())
+                    .setTypes(scm.getElasticTypeName())
+                    .setQuery(QueryBuilders.idsQuery(scm.getElasticTypeName()).ids(id))
+                    .execute().actionGet();
+        } catch (ElasticSearchException e) {
+            LOG.error("Unable to delete " + scm.getElasticTypeName() + " of id " + id + " from index " + scm.getIndexName(), e);
+        }
+        if (queryResultCache != null) {
+            queryResultCache.invalidate(Collections.singleton(scm.getIndexName()));
+        }
+    }
+
+    /**
+     * Marshalls the entities to index. The caller's session is not thread-safe, so entities attached to it are
+     * marshalled on the caller thread. Otherwise they are split between up to marshallingThreads workers,
+     * each opening a single read-only session for its whole share.
+     *
+     * @return the documents, in the order of the entities.
+     */
+    private List<BytesReference> marshall(List<Object> entities, Session session) {
+        int threads = Math.min(marshallingThreads, entities.size());
+        if (session != null || threads <= 1) {
+            return marshallSequentially(entities, session, false);
+        }
+
+        int sliceSize = (entities.size() + threads - 1) / threads;
+        List<Callable<List<BytesReference>>> tasks = new ArrayList<Callable<List<BytesReference>>>(threads);
+        for (int from = 0; from < entities.size(); from += sliceSize) {
+            final List<Object> slice = entities.subList(from, Math.min(from + sliceSize, entities.size()));
+            tasks.add(new Callable<List<BytesReference>>() {
+                public List<BytesReference> call() {
+                    return marshallSequentially(slice, null, true);
+                }
+            });
+        }
+
+        List<BytesReference> documents = new ArrayList<BytesReference>(entities.size());
+        try {
+            for (Future<List<BytesReference>> future : getMarshallingExecutor().invokeAll(tasks)) {
+                documents.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IndexException("Interrupted while marshalling " + entities.size() + " domain instances.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IndexException) {
+                throw (IndexException) e.getCause();
+            }
+            throw new IndexException("Failed to marshall " + entities.size() + " domain instances.", e.getCause());
+        }
+        return documents;
+    }
+
+    /**
+     * Marshalls the entities on the current thread, opening a read-only session if none is given.
+     *
+     * @param reload whether the entities are read again from the session. A worker thread must not initialize the
+     *               lazy associations of the entities through the session that loaded them, which belongs to another thread.
+     */
+    private List<BytesReference> marshallSequentially(List<Object> entities, Session session, boolean reload) {
+        PersistenceContextInterceptor persistenceInterceptor = null;
+        if (session == null) {
+            persistenceInterceptor = createInterceptor();
+            session = SessionFactoryUtils.getSession(sessionFactory, true);
+        }
+        try {
+            return marshallInSession(entities, session, reload);
+        } finally {
+            if (null != persistenceInterceptor) {
+                persistenceInterceptor.destroy();
+            }
+        }
+    }
+
+    private List<BytesReference> marshallInSession(List<Object> entities, Session session, boolean reload) {
+        List<BytesReference> documents = new ArrayList<BytesReference>(entities.size());
+        for (Object entity : entities) {
+            if (reload) {
+                Object copy = session.get(GrailsHibernateUtil.unwrapIfProxy(entity).getClass(),
+                        (Serializable) InvokerHelper.invokeMethod(entity, "ident", null));
+                // An instance which is not in the database (anymore) has nothing to load lazily
+                if (copy != null) {
+                    entity = copy;
+                }
+            } else if (session.contains(entity)) {
+                // If this not a transient instance, reattach it to the session
+                session.lock(entity, LockMode.NONE);
+                LOG.debug("Reattached entity to session");
+            }
+            documents.add(toSource(entity));
+        }
+        return documents;
+    }
+
+    private synchronized ExecutorService getMarshallingExecutor() {
+        if (marshallingExecutor == null) {
+            marshallingExecutor = Executors.newFixedThreadPool(marshallingThreads, new ThreadFactory() {
+                private int count;
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "elasticsearch-marshaller-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return marshallingExecutor;
+    }
+
+    private boolean isBulkFull(BulkRequestBuilder bulkRequestBuilder) {
+        return (maxBulkActions > 0 && bulkRequestBuilder.numberOfActions() >= maxBulkActions)
+                || (maxBulkBytes > 0 && bulkRequestBuilder.request().estimatedSizeInBytes() >= maxBulkBytes);
+    }
+
+    /**
+     * Sends a bulk request, once less than maxConcurrentBulks are waiting for their response. The sending thread waits
+     * for one of them up to the block timeout, the retry thread does not wait as it also runs the health checks:
+     * the requests go back to the queue otherwise, and are sent by the next flush.
+     *
+     * @param previous the batch of the previous bulk request sent by the same call, if any
+     * @return the batch listening to this bulk request.
+     */
+    private OperationBatch executeBulk(BulkRequestBuilder bulkRequestBuilder, Map<IndexEntityKey, Object> toIndex,
+                                       Set<IndexEntityKey> toDelete, Set<Integer> versionedItems, OperationBatch previous) {
+        Semaphore permits;
+        synchronized (this) {
+            permits = bulkPermits;
+        }
+        boolean acquired = true;
+        if (permits != null) {
+            long timeout = RETRY_THREAD_NAME.equals(Thread.currentThread().getName()) ? 0 : blockTimeout;
+            try {
+                acquired = permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+        }
+        OperationBatch completeListener;
+        synchronized (this) {
+            completeListener = new OperationBatch(toIndex, toDelete, versionedItems, previous, acquired ? permits : null);
+            operationBatchList.add(completeListener);
+            updateInFlightRequests(toIndex.size() + toDelete.size());
+        }
+        if (!acquired) {
+            LOG.warn("No bulk request slot was released in time, " + bulkRequestBuilder.numberOfActions() +
+                    " actions go back to the queue.");
+            completeListener.requeue();
+            scheduleFlush();
+            return completeListener;
+        }
+        try {
+            bulkRequestBuilder.execute().addListener(completeListener);
+        } catch (Exception e) {
+            // The requests go back to the queue, so that the rest of the flush is still sent
+            LOG.error("Failed to send a bulk request of " + bulkRequestBuilder.numberOfActions() + " actions", e);
+            completeListener.releasePermit();
+            recordBulkOutcome(false);
+            completeListener.requeue();
+            return completeListener;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Bulk request sent: " + bulkRequestBuilder.numberOfActions() + " actions, ~" +
+                    bulkRequestBuilder.request().estimatedSizeInBytes() + " bytes.");
+        }
+        return completeListener;
+    }
+
+    /**
+     * Blocks until the circuit breaker is closed.
+     */
+    private synchronized void awaitCircuitClosed() {
+        while (circuitOpen) {
+            LOG.warn("Circuit breaker is open, waiting for the cluster to recover.");
+            try {
+                wait(circuitBreakerResetTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IndexException("Interrupted while waiting for the circuit breaker to close.", e);
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of a bulk request, opening the circuit breaker after too many consecutive failures.
+     */
+    private void recordBulkOutcome(boolean success) {
+        synchronized (this) {
+            if (success) {
+                consecutiveFailures = 0;
+                return;
+            }
+            consecutiveFailures++;
+            if (circuitOpen || consecutiveFailures < circuitBreakerThreshold) {
+                return;
+            }
+            circuitOpen = true;
+        }
+        LOG.error("Circuit breaker opened after " + circuitBreakerThreshold + " consecutive bulk failures.");
+        scheduleHealthCheck();
+    }
+
+    private void scheduleHealthCheck() {
+        getScheduler().schedule(new Runnable() {
+            public void run() {
+                ClusterHealthStatus status = null;
                 try {
-                    bulkRequestBuilder.execute().addListener(completeListener);
+                    ClusterHealthResponse response = elasticSearchClient.admin().cluster().prepareHealth()
+                            .execute().actionGet(circuitBreakerResetTimeout);
+                    status = response.getStatus();
                 } catch (Exception e) {
-                    throw new IndexException("Failed to index/delete " + bulkRequestBuilder.numberOfActions(), e);
+                    LOG.debug("Cluster health check failed", e);
+                }
+                if (status == null || status == ClusterHealthStatus.RED) {
+                    LOG.warn("Cluster is still unhealthy (" + status + "), circuit breaker remains open.");
+                    scheduleHealthCheck();
+                    return;
                 }
+                synchronized (IndexRequestQueue.this) {
+                    circuitOpen = false;
+                    consecutiveFailures = 0;
+                    IndexRequestQueue.this.notifyAll();
+                }
+                LOG.info("Cluster is " + status + ", circuit breaker closed.");
+                executeRequests();
             }
+        }, circuitBreakerResetTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param attempts number of failed attempts so far
+     * @return delay before the next attempt: exponential, capped by retryMaxDelay, with +/- 50% jitter.
+     */
+    private long retryDelay(int attempts) {
+        long delay = retryInitialDelay << Math.min(attempts - 1, 30);
+        if (delay <= 0 || delay > retryMaxDelay) {
+            delay = retryMaxDelay;
+        }
+        synchronized (random) {
+            return delay / 2 + (long) (random.nextDouble() * delay);
         }
+    }
 
-        return completeListener;
+    /**
+     * Sends the pending requests after the initial retry delay, ie once bulk requests in flight had time to complete.
+     */
+    private void scheduleFlush() {
+        try {
+            getScheduler().schedule(new Runnable() {
+                public void run() {
+                    try {
+                        executeRequests();
+                    } catch (Exception e) {
+                        LOG.error("Failed to send the pending index requests", e);
+                    }
+                }
+            }, retryInitialDelay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Index request queue is shut down, the pending requests are sent by the next flush only.");
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, RETRY_THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Destroy method: stops scheduling retries and the marshalling threads.
+     */
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (marshallingExecutor != null) {
+            marshallingExecutor.shutdownNow();
+            marshallingExecutor = null;
+        }
     }
 
     public void waitComplete() {
@@ -262,15 +1240,38 @@ public class IndexRequestQueue {
 
     class OperationBatch implements ActionListener<BulkResponse> {
 
-        private int attempts;
         private Map<IndexEntityKey, Object> toIndex;
         private Set<IndexEntityKey> toDelete;
+        /**
+         * Positions of the externally versioned requests of the bulk request.
+         */
+        private Set<Integer> versionedItems;
         private CountDownLatch synchronizedCompletion = new CountDownLatch(1);
+        private volatile OperationBatch previous;
+        private Semaphore permits;
+        private boolean permitReleased;
+
+        OperationBatch(Map<IndexEntityKey, Object> toIndex, Set<IndexEntityKey> toDelete) {
+            this(toIndex, toDelete, Collections.<Integer>emptySet(), null, null);
+        }
 
-        OperationBatch(int attempts, Map<IndexEntityKey, Object> toIndex, Set<IndexEntityKey> toDelete) {
-            this.attempts = attempts;
+        OperationBatch(Map<IndexEntityKey, Object> toIndex, Set<IndexEntityKey> toDelete, Set<Integer> versionedItems,
+                       OperationBatch previous, Semaphore permits) {
             this.toIndex = toIndex;
             this.toDelete = toDelete;
+            this.versionedItems = versionedItems;
+            this.previous = previous;
+            this.permits = permits;
+        }
+
+        /**
+         * Releases the concurrent bulk permit held by this batch, once its response arrived.
+         */
+        synchronized void releasePermit() {
+            if (permits != null && !permitReleased) {
+                permitReleased = true;
+                permits.release();
+            }
         }
 
         public boolean isComplete() {
@@ -283,6 +1284,7 @@ public class IndexRequestQueue {
 
         /**
          * Wait for the operation to complete. Use this method to synchronize the application with the last ES operation.
+         * An operation is complete once all its requests are acknowledged, given up or handed over to a retry.
          *
          * @param msTimeout A maximum timeout (in milliseconds) before the wait method returns, whether the operation has been completed or not.
          *                  Default value is 5000 milliseconds
@@ -290,6 +1292,15 @@ public class IndexRequestQueue {
         public void waitComplete(Integer msTimeout) {
             msTimeout = msTimeout == null ? 5000 : msTimeout;
 
+            // The bulk requests sent before this one by the same call
+            OperationBatch before = previous;
+            if (before != null) {
+                before.waitComplete(msTimeout);
+                if (before.isComplete()) {
+                    previous = null;
+                }
+            }
+
             try {
                 if (!synchronizedCompletion.await(msTimeout, TimeUnit.MILLISECONDS)) {
                     LOG.warn("OperationBatchList.waitComplete() timed out after " + msTimeout.toString() + "ms");
@@ -304,27 +1315,88 @@ public class IndexRequestQueue {
         }
 
         public void onResponse(BulkResponse bulkResponse) {
+            releasePermit();
+            int pending = toIndex.size() + toDelete.size();
+            boolean anySuccess = false;
+            Set<String> writtenIndices = new HashSet<String>();
+            // While an index is rebuilt, a request is written to several indices: it is only done once all its items are
+            Map<IndexEntityKey, Boolean> done = new LinkedHashMap<IndexEntityKey, Boolean>();
+            // Whether the deletions of a document from the shards of its previous routing values all succeeded
+            Map<IndexEntityKey, Boolean> rerouted = new HashMap<IndexEntityKey, Boolean>();
             for (BulkItemResponse item : bulkResponse.getItems()) {
-                boolean removeFromQueue = !item.isFailed()
-                        || item.getFailureMessage().indexOf("UnavailableShardsException") >= 0;
+                if ("delete".equals(item.getOpType()) && isPartitionMove(item)) {
+                    // The deletion from a previous partition is retried with the next indexing of the document
+                    if (!item.isFailed()) {
+                        removePreviousPartition(new IndexEntityKey(item.getId(),
+                                elasticSearchContextHolder.findMappedClassByElasticType(item.getType())), item.getIndex());
+                    } else {
+                        LOG.error("Failed to delete a moved document from its previous partition: " + item.getFailureMessage());
+                    }
+                    continue;
+                }
+                if ("delete".equals(item.getOpType()) && isRoutingMove(item)) {
+                    // Likewise, the deletion from the previous shard is retried with the next indexing of the document
+                    IndexEntityKey key = new IndexEntityKey(item.getId(),
+                            elasticSearchContextHolder.findMappedClassByElasticType(item.getType()));
+                    Boolean keyDone = rerouted.get(key);
+                    rerouted.put(key, (keyDone == null || keyDone) && !item.isFailed());
+                    if (item.isFailed()) {
+                        LOG.error("Failed to delete a rerouted document from its previous shard: " + item.getFailureMessage());
+                    }
+                    continue;
+                }
                 // On shard failure, do not re-push.
-                if (removeFromQueue) {
+                // An externally versioned write conflicts when a newer document was already written to a rebuilt index.
+                boolean itemDone = !item.isFailed()
+                        || item.getFailureMessage().indexOf("UnavailableShardsException") >= 0
+                        || (versionedItems.contains(item.getItemId())
+                            && item.getFailureMessage().indexOf("VersionConflictEngineException") >= 0);
+                anySuccess |= !item.isFailed();
+                if (item.isFailed()) {
+                    LOG.error("Failed bulk item: " + item.getFailureMessage());
+                }
+                Class<?> entityClass = elasticSearchContextHolder.findMappedClassByElasticType(item.getType());
+                if (entityClass == null) {
+                    LOG.error("Elastic type [" + item.getType() + "] is not mapped.");
+                    continue;
+                }
+                if (!item.isFailed()) {
+                    writtenIndices.add(item.getIndex());
+                    // Searches are cached under the alias of the index, items report the concrete index
+                    writtenIndices.add(elasticSearchContextHolder.findMappingContextByElasticType(item.getType()).getIndexName());
+                }
+                IndexEntityKey key = new IndexEntityKey(item.getId(), entityClass);
+                Boolean keyDone = done.get(key);
+                done.put(key, (keyDone == null || keyDone) && itemDone);
+            }
+            for (Map.Entry<IndexEntityKey, Boolean> entry : rerouted.entrySet()) {
+                if (entry.getValue()) {
+                    removePreviousRoutings(entry.getKey());
+                }
+            }
+            for (Map.Entry<IndexEntityKey, Boolean> entry : done.entrySet()) {
+                if (entry.getValue()) {
                     // remove successful OR fatal ones.
-                    Class<?> entityClass = elasticSearchContextHolder.findMappedClassByElasticType(item.getType());
-                    if (entityClass == null) {
-                        LOG.error("Elastic type [" + item.getType() + "] is not mapped.");
-                        continue;
+                    IndexEntityKey key = entry.getKey();
+                    if (toDelete.contains(key)) {
+                        // Deleted from the shards of its previous routing values as well
+                        removePreviousRoutings(key);
                     }
-                    IndexEntityKey key = new IndexEntityKey(item.getId(), entityClass);
                     toIndex.remove(key);
                     toDelete.remove(key);
-                }
-                if (item.isFailed()) {
-                    LOG.error("Failed bulk item: " + item.getFailureMessage());
+                    synchronized (IndexRequestQueue.this) {
+                        failedAttempts.remove(key);
+                    }
+                    acknowledge(key);
                 }
             }
+            if (queryResultCache != null) {
+                queryResultCache.invalidate(writtenIndices);
+            }
+            updateInFlightRequests(toIndex.size() + toDelete.size() - pending);
+            recordBulkOutcome(anySuccess || bulkResponse.getItems().length == 0);
             if (!toIndex.isEmpty() || !toDelete.isEmpty()) {
-                push();
+                retry();
             } else {
                 fireComplete();
                 if (LOG.isDebugEnabled()) {
@@ -333,35 +1405,180 @@ public class IndexRequestQueue {
             }
         }
 
+        /**
+         * @return whether the item deletes a document from a partition it was moved from.
+         */
+        private boolean isPartitionMove(BulkItemResponse item) {
+            Class<?> entityClass = elasticSearchContextHolder.findMappedClassByElasticType(item.getType());
+            return entityClass != null
+                    && getPreviousPartitions(new IndexEntityKey(item.getId(), entityClass)).contains(item.getIndex());
+        }
+
+        /**
+         * @return whether the item deletes a document being indexed from the shard of a previous routing value.
+         */
+        private boolean isRoutingMove(BulkItemResponse item) {
+            Class<?> entityClass = elasticSearchContextHolder.findMappedClassByElasticType(item.getType());
+            return entityClass != null && toIndex.containsKey(new IndexEntityKey(item.getId(), entityClass));
+        }
+
         public void onFailure(Throwable e) {
-            // Everything failed. Re-push all.
+            // Everything failed. Retry all.
             LOG.error("Bulk request failure", e);
-            push();
+            releasePermit();
+            recordBulkOutcome(false);
+            retry();
+        }
+
+        /**
+         * Counts a failed attempt for the remaining requests, hands the ones which reached the max number
+         * of attempts to the dead letter handler, and schedules a retry for the others.
+         */
+        private void retry() {
+            Map<IndexEntityKey, Integer> deadLetters = new LinkedHashMap<IndexEntityKey, Integer>();
+            Map<IndexEntityKey, Object> deadInstances = new HashMap<IndexEntityKey, Object>();
+            int attempts = 0;
+            synchronized (IndexRequestQueue.this) {
+                for (Iterator<Map.Entry<IndexEntityKey, Object>> it = toIndex.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<IndexEntityKey, Object> entry = it.next();
+                    int failed = countFailedAttempt(entry.getKey());
+                    if (failed >= maxAttempts) {
+                        deadLetters.put(entry.getKey(), failed);
+                        deadInstances.put(entry.getKey(), entry.getValue());
+                        it.remove();
+                    } else {
+                        attempts = Math.max(attempts, failed);
+                    }
+                }
+                for (Iterator<IndexEntityKey> it = toDelete.iterator(); it.hasNext(); ) {
+                    IndexEntityKey key = it.next();
+                    int failed = countFailedAttempt(key);
+                    if (failed >= maxAttempts) {
+                        deadLetters.put(key, failed);
+                        it.remove();
+                    } else {
+                        attempts = Math.max(attempts, failed);
+                    }
+                }
+            }
+            giveUp(deadLetters, deadInstances, false);
+
+            if (toIndex.isEmpty() && toDelete.isEmpty()) {
+                fireComplete();
+                return;
+            }
+
+            long delay = retryDelay(attempts);
+            LOG.debug("Scheduling retry in " + delay + "ms: " + toIndex.size() + " indexing, " + toDelete.size() + " deletes.");
+            try {
+                getScheduler().schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            push();
+                        } catch (Exception e) {
+                            LOG.error("Failed to retry index requests", e);
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("Index request queue is shut down, dropping retry of " + (toIndex.size() + toDelete.size()) + " requests.");
+                synchronized (IndexRequestQueue.this) {
+                    deadLetters.clear();
+                    deadInstances.clear();
+                    for (Map.Entry<IndexEntityKey, Object> entry : toIndex.entrySet()) {
+                        failedAttempts.remove(entry.getKey());
+                        deadLetters.put(entry.getKey(), attempts);
+                        deadInstances.put(entry.getKey(), entry.getValue());
+                    }
+                    for (IndexEntityKey key : toDelete) {
+                        failedAttempts.remove(key);
+                        deadLetters.put(key, attempts);
+                    }
+                    toIndex.clear();
+                    toDelete.clear();
+                }
+                giveUp(deadLetters, deadInstances, journal != null);
+                fireComplete();
+            }
+        }
+
+        /**
+         * Releases the requests removed from this batch for good: they no longer count as in flight, and are handed
+         * to the dead letter handler. Requests which are kept for a replay of the journal are not acknowledged, nor
+         * handed to the handler, as they are sent again on the next start.
+         *
+         * @param deadLetters the requests given up, with their number of failed attempts
+         * @param instances   the entities of the index requests given up
+         * @param replayed    whether the requests are left in the journal
+         */
+        private void giveUp(Map<IndexEntityKey, Integer> deadLetters, Map<IndexEntityKey, Object> instances, boolean replayed) {
+            if (deadLetters.isEmpty()) {
+                return;
+            }
+            releasePermit();
+            updateInFlightRequests(-deadLetters.size());
+            if (replayed) {
+                LOG.warn(deadLetters.size() + " requests are kept in the journal, to be sent again on the next start.");
+                return;
+            }
+            for (Map.Entry<IndexEntityKey, Integer> entry : deadLetters.entrySet()) {
+                IndexEntityKey key = entry.getKey();
+                Object instance = instances.get(key);
+                acknowledge(key);
+                if (deadLetterHandler != null) {
+                    try {
+                        deadLetterHandler.onDeadLetter(key.getClazz(), key.getId(), instance == null, instance, entry.getValue());
+                    } catch (Exception e) {
+                        LOG.error("Dead letter handler failed for " + key, e);
+                    }
+                } else {
+                    LOG.error("Giving up " + (instance == null ? "deleting " : "indexing ") + key +
+                            " after " + entry.getValue() + " attempts.");
+                }
+            }
         }
 
+        private int countFailedAttempt(IndexEntityKey key) {
+            Integer failed = failedAttempts.get(key);
+            failed = failed == null ? 1 : failed + 1;
+            if (failed >= maxAttempts) {
+                failedAttempts.remove(key);
+            } else {
+                failedAttempts.put(key, failed);
+            }
+            return failed;
+        }
 
         /**
          * Push specified entities to be retried.
          */
         public void push() {
             LOG.debug("Pushing retry: " + toIndex.size() + " indexing, " + toDelete.size() + " deletes.");
-            for (Map.Entry<IndexEntityKey, Object> entry : toIndex.entrySet()) {
-                synchronized (this) {
+            requeue();
+            executeRequests();
+        }
+
+        /**
+         * Moves the requests of this batch back to the pending queues, and completes it.
+         */
+        void requeue() {
+            synchronized (IndexRequestQueue.this) {
+                for (Map.Entry<IndexEntityKey, Object> entry : toIndex.entrySet()) {
                     if (!indexRequests.containsKey(entry.getKey())) {
                         // Do not overwrite existing stuff in the queue.
                         indexRequests.put(entry.getKey(), entry.getValue());
                     }
                 }
-            }
-            for (IndexEntityKey key : toDelete) {
-                synchronized (this) {
+                for (IndexEntityKey key : toDelete) {
                     if (!deleteRequests.contains(key)) {
                         deleteRequests.add(key);
                     }
                 }
+                // Retried requests are now counted as pending ones.
+                updateInFlightRequests(-(toIndex.size() + toDelete.size()));
             }
-
-            executeRequests();
+            // The requests are now owned by the retry.
+            fireComplete();
         }
     }
 
@@ -372,10 +1589,25 @@ public class IndexRequestQueue {
          */
         private final String id;
         private final Class clazz;
+        /**
+         * routing value of the instance, null if unknown. Not part of the key.
+         */
+        private final String routing;
+        /**
+         * index of the instance, null if unknown. Not part of the key.
+         */
+        private final String index;
+        /**
+         * version of the instance, null if unknown. Not part of the key.
+         */
+        private final Long version;
 
         IndexEntityKey(String id, Class clazz) {
             this.id = id;
             this.clazz = clazz;
+            this.routing = null;
+            this.index = null;
+            this.version = null;
         }
 
         IndexEntityKey(Object instance) {
@@ -385,6 +1617,9 @@ public class IndexRequestQueue {
                 throw new IllegalArgumentException("Class " + clazz + " is not a searchable domain class.");
             }
             this.id = (InvokerHelper.invokeMethod(instance, "ident", null)).toString();
+            this.routing = scm.getRoutingValue(instance);
+            this.index = scm.getIndexName(instance);
+            this.version = scm.getVersionValue(instance);
         }
 
         public String getId() {
@@ -395,6 +1630,18 @@ public class IndexRequestQueue {
             return clazz;
         }
 
+        public String getRouting() {
+            return routing;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public Long getVersion() {
+            return version;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -99,9 +99,11 @@ public class ElasticSearchMappingFactory {
                     // Proceed with nested mapping.
                     // todo limit depth to avoid endless recursion?
                     propType = "object";
+                    // Only the properties of the component are nested, not its type level options (_routing...)
                     //noinspection unchecked
-                    propOptions.putAll((Map<String, Object>)
-                            (getElasticMapping(scpm.getComponentPropertyMapping()).values().iterator().next()));
+                    Map<String, Object> componentMapping = (Map<String, Object>)
+                            getElasticMapping(scpm.getComponentPropertyMapping()).values().iterator().next();
+                    propOptions.put("properties", componentMapping.get("properties"));
 
                 }
 
@@ -136,9 +138,15 @@ public class ElasticSearchMappingFactory {
             elasticTypeMappingProperties.put(scpm.getPropertyName(), propOptions);
         }
 
+        Map<String, Object> typeMapping = new LinkedHashMap<String, Object>();
+        if (scm.getRouting() != null) {
+            // Documents indexed or deleted without their routing value would end up on the wrong shard
+            typeMapping.put("_routing", Collections.singletonMap("required", true));
+        }
+        typeMapping.put("properties", elasticTypeMappingProperties);
+
         Map<String, Object> mapping = new LinkedHashMap<String, Object>();
-        mapping.put(scm.getElasticTypeName(),
-                Collections.singletonMap("properties", elasticTypeMappingProperties));
+        mapping.put(scm.getElasticTypeName(), typeMapping);
 
         return mapping;
     }
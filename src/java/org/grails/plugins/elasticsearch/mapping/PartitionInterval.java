@@ -0,0 +1,90 @@
+/*
+ * Copyright 2002-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.grails.plugins.elasticsearch.mapping;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Period covered by each index of a time-partitioned class. Periods are computed in UTC, weeks start on monday.
+ */
+public enum PartitionInterval {
+
+    DAY(Calendar.DAY_OF_MONTH, "yyyy.MM.dd"),
+    WEEK(Calendar.WEEK_OF_YEAR, "yyyy.MM.dd"),
+    MONTH(Calendar.MONTH, "yyyy.MM");
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final int field;
+    private final String pattern;
+
+    PartitionInterval(int field, String pattern) {
+        this.field = field;
+        this.pattern = pattern;
+    }
+
+    /**
+     * @param name "day", "week" or "month"
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static PartitionInterval fromString(String name) {
+        for (PartitionInterval interval : values()) {
+            if (interval.name().equalsIgnoreCase(name)) {
+                return interval;
+            }
+        }
+        throw new IllegalArgumentException("Unknown partition interval [" + name + "], expected day, week or month.");
+    }
+
+    /**
+     * @return the suffix of the partition holding the given date, ie "2013.10" for a monthly partition.
+     * Weekly partitions are named after their first day.
+     */
+    public String suffix(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(UTC);
+        return format.format(start(date).getTime());
+    }
+
+    /**
+     * @return the suffixes of the partitions overlapping the given period, in chronological order.
+     */
+    public List<String> suffixes(Date since, Date until) {
+        List<String> suffixes = new ArrayList<String>();
+        Calendar end = start(until);
+        for (Calendar current = start(since); !current.after(end); current.add(field, 1)) {
+            suffixes.add(suffix(current.getTime()));
+        }
+        return suffixes;
+    }
+
+    private Calendar start(Date date) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTime(date);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        if (this == WEEK) {
+            // Days since monday
+            calendar.add(Calendar.DAY_OF_MONTH, -((calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7));
+        } else if (this == MONTH) {
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        return calendar;
+    }
+}
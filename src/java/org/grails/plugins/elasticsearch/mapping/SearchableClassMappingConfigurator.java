@@ -19,15 +19,20 @@ package org.grails.plugins.elasticsearch.mapping;
 import groovy.util.ConfigObject;
 import org.apache.log4j.Logger;
 import org.codehaus.groovy.grails.commons.*;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.indices.InvalidAliasNameException;
 import org.elasticsearch.transport.RemoteTransportException;
 import org.grails.plugins.elasticsearch.ElasticSearchContextHolder;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Build searchable mappings, configure ElasticSearch indexes,
@@ -42,6 +47,11 @@ public class SearchableClassMappingConfigurator {
     private Client elasticSearchClient;
     private ConfigObject config;
 
+    /**
+     * Partitions known to exist with their mapping and alias.
+     */
+    private final Set<String> knownPartitions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     /**
      * Init method.
      */
@@ -56,54 +66,20 @@ public class SearchableClassMappingConfigurator {
      */
     public void installMappings(Collection<SearchableClassMapping> mappings) {
         Set<String> installedIndices = new HashSet<String>();
-        Map<String, Object> settings = new HashMap<String, Object>();
-//        settings.put("number_of_shards", 5);        // must have 5 shards to be Green.
-//        settings.put("number_of_replicas", 2);
-        settings.put("number_of_replicas", 0);
-        // Look for default index settings.
-        Map esConfig = (Map) ConfigurationHolder.getConfig().getProperty("elasticSearch");
-        if (esConfig != null) {
-            @SuppressWarnings({"unchecked"})
-            Map<String, Object> indexDefaults = (Map<String, Object>) esConfig.get("index");
-            LOG.debug("Retrieved index settings");
-            if (indexDefaults != null) {
-                for(Map.Entry<String, Object> entry : indexDefaults.entrySet()) {
-                    settings.put("index." + entry.getKey(), entry.getValue());
-                }
-            }
-        }
+        Map<String, Object> settings = getIndexSettings();
         LOG.debug("Installing mappings...");
         for(SearchableClassMapping scm : mappings) {
             if (scm.isRoot()) {
                 Map elasticMapping = ElasticSearchMappingFactory.getElasticMapping(scm);
 
-                // todo wait for success, maybe retry.
-                // If the index does not exist, create it
-                if (!installedIndices.contains(scm.getIndexName())) {
-                    LOG.debug("Index " + scm.getIndexName() + " does not exists, initiating creation...");
-                    try {
-                        // Could be blocked on index level, thus wait.
-                        try {
-                            LOG.debug("Waiting at least yellow status on " + scm.getIndexName() + " ...");
-                            elasticSearchClient.admin().cluster().prepareHealth(scm.getIndexName())
-                                    .setWaitForYellowStatus()
-                                    .execute().actionGet();
-                        } catch (Exception e) {
-                            // ignore any exceptions due to non-existing index.
-                            LOG.debug("Index health", e);
-                        }
-                        elasticSearchClient.admin().indices().prepareCreate(scm.getIndexName())
-                                .setSettings(settings)
-                                .execute().actionGet();
-                        installedIndices.add(scm.getIndexName());
-                        LOG.debug(elasticMapping.toString());
-
-                        // If the index already exists, ignore the exception
-                    } catch (IndexAlreadyExistsException iaee) {
-                        LOG.debug("Index " + scm.getIndexName() + " already exists, skip index creation.");
-                    } catch (RemoteTransportException rte) {
-                        LOG.debug(rte.getMessage());
-                    }
+                if (scm.isPartitioned()) {
+                    // The alias of the partitions is created with the current partition, the older ones get the mapping through it
+                    ensurePartition(scm, scm.getPartitionIndexName(new Date()));
+                } else if (!installedIndices.contains(scm.getIndexName())) {
+                    // todo wait for success, maybe retry.
+                    // If the index does not exist, create it behind an alias
+                    createAliasedIndex(scm.getIndexName(), settings);
+                    installedIndices.add(scm.getIndexName());
                 }
 
                 // Install mapping
@@ -124,6 +100,128 @@ public class SearchableClassMappingConfigurator {
         LOG.debug("Cluster status: " + response.getStatus());
     }
 
+    /**
+     * Creates a partition of a time-partitioned class if it does not exist yet, with the mapping of the class,
+     * and adds it to the alias of the class.
+     *
+     * @param scm       the partitioned class
+     * @param partition name of the partition index
+     */
+    public void ensurePartition(SearchableClassMapping scm, String partition) {
+        if (knownPartitions.contains(partition)) {
+            return;
+        }
+        createIndex(partition, getIndexSettings(), ElasticSearchMappingFactory.getElasticMapping(scm));
+        elasticSearchClient.admin().indices().prepareAliases()
+                .addAlias(partition, scm.getIndexName())
+                .execute().actionGet();
+        knownPartitions.add(partition);
+        LOG.info("Partition " + partition + " of " + scm.getIndexName() + " is ready.");
+    }
+
+    /**
+     * Creates an index with the current mappings of the given classes, ie to rebuild their index into it.
+     *
+     * @param index    name of the index to create
+     * @param mappings root classes mapped in the index
+     */
+    public void installIndex(String index, Collection<SearchableClassMapping> mappings) {
+        createIndex(index, getIndexSettings(), null);
+        for(SearchableClassMapping scm : mappings) {
+            elasticSearchClient.admin().indices().putMapping(
+                    new PutMappingRequest(index)
+                            .type(scm.getElasticTypeName())
+                            .source(ElasticSearchMappingFactory.getElasticMapping(scm))
+            ).actionGet();
+        }
+    }
+
+    /**
+     * Forgets the partitions known to exist, called when indices are deleted.
+     */
+    public void clearPartitions() {
+        knownPartitions.clear();
+    }
+
+    /**
+     * Creates an index as the alias of a first versioned index named "index_v0", so that a rebuild only has to move
+     * the alias. An existing index or alias of that name is kept as is.
+     */
+    private void createAliasedIndex(String index, Map<String, Object> settings) {
+        if (elasticSearchClient.admin().indices().prepareExists(index).execute().actionGet().isExists()) {
+            LOG.debug("Index " + index + " already exists, skip index creation.");
+            return;
+        }
+        String versioned = index + "_v0";
+        createIndex(versioned, settings, null);
+        try {
+            elasticSearchClient.admin().indices().prepareAliases()
+                    .addAlias(versioned, index)
+                    .execute().actionGet();
+        } catch (ElasticSearchException e) {
+            if (!(ExceptionsHelper.unwrapCause(e) instanceof InvalidAliasNameException)) {
+                throw e;
+            }
+            // The index was created meanwhile, ie by another node or a write auto-creating it
+            LOG.warn("Index " + index + " was created before its alias, " + versioned + " is left unused.");
+        }
+    }
+
+    private void createIndex(String index, Map<String, Object> settings, Map elasticMapping) {
+        LOG.debug("Index " + index + " does not exists, initiating creation...");
+        try {
+            // Could be blocked on index level, thus wait.
+            try {
+                LOG.debug("Waiting at least yellow status on " + index + " ...");
+                elasticSearchClient.admin().cluster().prepareHealth(index)
+                        .setWaitForYellowStatus()
+                        .execute().actionGet();
+            } catch (Exception e) {
+                // ignore any exceptions due to non-existing index.
+                LOG.debug("Index health", e);
+            }
+            // The index may also be the alias of a rebuilt index
+            if (elasticSearchClient.admin().indices().prepareExists(index).execute().actionGet().isExists()) {
+                LOG.debug("Index " + index + " already exists, skip index creation.");
+                return;
+            }
+            CreateIndexRequestBuilder request = elasticSearchClient.admin().indices().prepareCreate(index)
+                    .setSettings(settings);
+            if (elasticMapping != null) {
+                String type = (String) elasticMapping.keySet().iterator().next();
+                //noinspection unchecked
+                request.addMapping(type, (Map<String, Object>) elasticMapping);
+            }
+            request.execute().actionGet();
+
+            // If the index already exists, ignore the exception
+        } catch (IndexAlreadyExistsException iaee) {
+            LOG.debug("Index " + index + " already exists, skip index creation.");
+        } catch (RemoteTransportException rte) {
+            LOG.debug(rte.getMessage());
+        }
+    }
+
+    private Map<String, Object> getIndexSettings() {
+        Map<String, Object> settings = new HashMap<String, Object>();
+//        settings.put("number_of_shards", 5);        // must have 5 shards to be Green.
+//        settings.put("number_of_replicas", 2);
+        settings.put("number_of_replicas", 0);
+        // Look for default index settings.
+        Map esConfig = (Map) ConfigurationHolder.getConfig().getProperty("elasticSearch");
+        if (esConfig != null) {
+            @SuppressWarnings({"unchecked"})
+            Map<String, Object> indexDefaults = (Map<String, Object>) esConfig.get("index");
+            LOG.debug("Retrieved index settings");
+            if (indexDefaults != null) {
+                for(Map.Entry<String, Object> entry : indexDefaults.entrySet()) {
+                    settings.put("index." + entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return settings;
+    }
+
     private Collection<SearchableClassMapping> buildMappings() {
         List<SearchableClassMapping> mappings = new ArrayList<SearchableClassMapping>();
         for(GrailsClass clazz : grailsApplication.getArtefacts(DomainClassArtefactHandler.TYPE)) {
@@ -151,6 +249,11 @@ public class SearchableClassMappingConfigurator {
             scm.validate(elasticSearchContext);
         }
 
+        // Resolve once how each searchable class is marshalled and rebuilt.
+        for(SearchableClassMapping scm : mappings) {
+            scm.compileMarshallingPlan();
+        }
+
         return mappings;
     }
 
@@ -20,6 +20,7 @@ import groovy.lang.Closure;
 import groovy.lang.GroovyObjectSupport;
 import groovy.util.ConfigObject;
 import org.codehaus.groovy.grails.commons.*;
+import org.codehaus.groovy.grails.validation.ConstrainedProperty;
 
 import java.lang.reflect.Modifier;
 import java.util.*;
@@ -28,7 +29,7 @@ class SearchableDomainClassMapper extends GroovyObjectSupport {
     /**
      * Options applied to searchable class itself
      */
-    public static final Set<String> CLASS_MAPPING_OPTIONS = new HashSet<String>(Arrays.asList("all", "root", "only", "except"));
+    public static final Set<String> CLASS_MAPPING_OPTIONS = new HashSet<String>(Arrays.asList("all", "root", "only", "except", "hydrate", "profile", "routing", "partition"));
     /**
      * Searchable property name
      */
@@ -39,6 +40,11 @@ class SearchableDomainClassMapper extends GroovyObjectSupport {
      */
     private Boolean all = true;
     private Boolean root = true;
+    private String hydrate;
+    private String profile;
+    private String routing;
+    private String partitionProperty;
+    private PartitionInterval partitionInterval;
 
     private Set<String> mappableProperties = new HashSet<String>();
     private Map<String, SearchableClassPropertyMapping> customMappedProperties = new HashMap<String, SearchableClassPropertyMapping>();
@@ -82,6 +88,64 @@ class SearchableDomainClassMapper extends GroovyObjectSupport {
         this.root = rootFlag;
     }
 
+    public void setHydrate(String hydrate) {
+        if (!SearchableClassMapping.HYDRATE_INDEX.equals(hydrate) && !SearchableClassMapping.HYDRATE_DATABASE.equals(hydrate)) {
+            throw new IllegalArgumentException(grailsDomainClass.getPropertyName() + " mapping declares hydrate : expected '" +
+                    SearchableClassMapping.HYDRATE_INDEX + "' or '" + SearchableClassMapping.HYDRATE_DATABASE + "', found '" + hydrate + "'.");
+        }
+        this.hydrate = hydrate;
+    }
+
+    public void hydrate(String hydrate) {
+        setHydrate(hydrate);
+    }
+
+    public void setProfile(String profile) {
+        this.profile = profile;
+    }
+
+    public void profile(String profile) {
+        this.profile = profile;
+    }
+
+    public void setRouting(String routing) {
+        if (grailsDomainClass.getPersistentProperty(routing) == null) {
+            throw new IllegalArgumentException(grailsDomainClass.getPropertyName() + " mapping declares routing on [" + routing +
+                    "], which is not a persistent property.");
+        }
+        // The _routing of the type is required: a document without a routing value could never be indexed
+        Map constraints = grailsDomainClass.getConstrainedProperties();
+        Object constrained = constraints == null ? null : constraints.get(routing);
+        if (constrained instanceof ConstrainedProperty && ((ConstrainedProperty) constrained).isNullable()) {
+            throw new IllegalArgumentException(grailsDomainClass.getPropertyName() + " mapping declares routing on [" + routing +
+                    "], which is nullable.");
+        }
+        this.routing = routing;
+    }
+
+    public void routing(String routing) {
+        setRouting(routing);
+    }
+
+    /**
+     * @param partition the date property partitioning the class, and the interval of the partitions (month by default)
+     */
+    public void setPartition(Map<String, ?> partition) {
+        Object property = partition.get("property");
+        GrailsDomainClassProperty dateProperty = property == null ? null : grailsDomainClass.getPersistentProperty(property.toString());
+        if (dateProperty == null || !Date.class.isAssignableFrom(dateProperty.getType())) {
+            throw new IllegalArgumentException(grailsDomainClass.getPropertyName() + " mapping declares partition on [" + property +
+                    "], which is not a persistent date property.");
+        }
+        Object interval = partition.get("interval");
+        this.partitionProperty = dateProperty.getName();
+        this.partitionInterval = interval == null ? PartitionInterval.MONTH : PartitionInterval.fromString(interval.toString());
+    }
+
+    public void partition(Map<String, ?> partition) {
+        setPartition(partition);
+    }
+
     /**
      * @return searchable domain class mapping
      */
@@ -169,6 +233,11 @@ class SearchableDomainClassMapper extends GroovyObjectSupport {
 
         SearchableClassMapping scm = new SearchableClassMapping(grailsDomainClass, customMappedProperties.values());
         scm.setRoot(root);
+        scm.setHydrate(hydrate);
+        scm.setProfile(profile);
+        scm.setRouting(routing);
+        scm.setPartitionProperty(partitionProperty);
+        scm.setPartitionInterval(partitionInterval);
         return scm;
     }
 
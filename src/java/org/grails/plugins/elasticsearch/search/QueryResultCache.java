@@ -0,0 +1,304 @@
+/*
+ * Copyright 2002-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.grails.plugins.elasticsearch.search;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.springframework.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * In-memory cache of the responses of search & count requests, keyed by the serialized request.
+ * <p/>
+ * Responses are cached serialized, and each lookup gets its own copy: the hits of a response keep their parsed
+ * source, which callers bind to domain instances or mutate.
+ * <p/>
+ * Entries are evicted when they are older than the TTL, or when the cache is full (least recently used first),
+ * and are invalidated per index when documents are written to it (see {@link #invalidate(Collection)}).
+ * Concurrent lookups of the same missing key share a single request to ElasticSearch.
+ */
+public class QueryResultCache {
+
+    private static final Logger LOG = Logger.getLogger(QueryResultCache.class);
+
+    private static final String ALL_INDICES = "_all";
+
+    /**
+     * Max number of cached responses.
+     */
+    private int maxSize = 1000;
+
+    /**
+     * Time (in milliseconds) a response stays cached.
+     */
+    private long ttl = 60000;
+
+    /**
+     * Time (in milliseconds) for the written documents to become visible to searches after an invalidation.
+     * Responses loaded in the meantime are not cached, as they may not include the written documents yet.
+     */
+    private long refreshInterval = 1000;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    /**
+     * Time until which the responses of each index may be stale, guarded by this.
+     */
+    private final Map<String, Long> staleUntil = new HashMap<String, Long>();
+
+    /**
+     * Latest value of staleUntil, for the requests on all indices. Guarded by this.
+     */
+    private long anyStaleUntil;
+
+    private final ConcurrentMap<Key, FutureTask<Entry>> loading = new ConcurrentHashMap<Key, FutureTask<Entry>>();
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Builds the key of a request.
+     *
+     * @param indices the indices the request is sent to
+     * @param request the request, once built
+     */
+    public static Key key(String[] indices, ActionRequest request) {
+        BytesStreamOutput out = new BytesStreamOutput();
+        try {
+            request.writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to serialize " + request.getClass().getSimpleName(), e);
+        }
+        return new Key(request.getClass(), indices, out.bytes().toBytes());
+    }
+
+    /**
+     * Returns a copy of the cached response of a request, or loads it.
+     * If the same request is already being loaded by another thread, waits for its response instead.
+     *
+     * @param key    key of the request, see {@link #key(String[], ActionRequest)}
+     * @param loader sends the request and returns its response
+     */
+    public <T extends Streamable> T get(Key key, final Callable<T> loader) {
+        long now = System.currentTimeMillis();
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(key);
+            if (cached != null && cached.expiresAt <= now) {
+                entries.remove(key);
+                cached = null;
+            }
+        }
+        if (cached != null) {
+            return cached.<T>copy();
+        }
+
+        FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+            public Entry call() throws Exception {
+                return new Entry(loader.call());
+            }
+        });
+        FutureTask<Entry> pending = loading.putIfAbsent(key, task);
+        if (pending != null) {
+            LOG.debug("Waiting for the response of an identical request.");
+            return await(pending).<T>copy();
+        }
+        try {
+            task.run();
+            Entry entry = await(task);
+            store(key, entry, now);
+            return entry.<T>copy();
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    /**
+     * Evicts the responses of the requests on the given indices, called when documents are written to them.
+     */
+    public synchronized void invalidate(Collection<String> indices) {
+        if (indices.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long until = now + refreshInterval;
+        // Forget the indices which are no longer stale
+        for (Iterator<Long> it = staleUntil.values().iterator(); it.hasNext(); ) {
+            if (it.next() < now) {
+                it.remove();
+            }
+        }
+        for (String index : indices) {
+            staleUntil.put(index, until);
+        }
+        anyStaleUntil = until;
+        for (Iterator<Key> it = entries.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().isOnAny(indices)) {
+                it.remove();
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Invalidated cached responses of " + indices);
+        }
+    }
+
+    /**
+     * Evicts all the responses.
+     */
+    public synchronized void invalidateAll() {
+        anyStaleUntil = System.currentTimeMillis() + refreshInterval;
+        for (String index : staleUntil.keySet()) {
+            staleUntil.put(index, anyStaleUntil);
+        }
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized void store(Key key, Entry entry, long loadedAt) {
+        // The response may be stale if the indices were written since the request was sent
+        if (key.isOnAll()) {
+            if (anyStaleUntil >= loadedAt) {
+                return;
+            }
+        } else {
+            for (String index : key.indices) {
+                Long until = staleUntil.get(index);
+                if (until != null && until >= loadedAt) {
+                    return;
+                }
+            }
+        }
+        entry.expiresAt = loadedAt + ttl;
+        entries.put(key, entry);
+    }
+
+    private static Entry await(FutureTask<Entry> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a search response", e);
+        } catch (ExecutionException e) {
+            ReflectionUtils.rethrowRuntimeException(e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * A serialized response.
+     */
+    private static class Entry {
+        private final Class<? extends Streamable> responseClass;
+        private final byte[] bytes;
+        private long expiresAt;
+
+        Entry(Streamable response) throws IOException {
+            BytesStreamOutput out = new BytesStreamOutput();
+            response.writeTo(out);
+            this.responseClass = response.getClass();
+            this.bytes = out.bytes().toBytes();
+        }
+
+        /**
+         * @return a new response read from the serialized one.
+         */
+        @SuppressWarnings("unchecked")
+        <T extends Streamable> T copy() {
+            try {
+                // Responses are only meant to be built by ElasticSearch, their constructor is not always public
+                Constructor<? extends Streamable> constructor = responseClass.getDeclaredConstructor();
+                ReflectionUtils.makeAccessible(constructor);
+                Streamable response = constructor.newInstance();
+                response.readFrom(new BytesStreamInput(bytes, false));
+                return (T) response;
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to read a cached " + responseClass.getSimpleName(), e);
+            }
+        }
+    }
+
+    /**
+     * Serialized request and the indices it is sent to.
+     */
+    public static class Key {
+        private final Class<?> requestClass;
+        private final Set<String> indices;
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(Class<?> requestClass, String[] indices, byte[] bytes) {
+            this.requestClass = requestClass;
+            this.indices = indices == null || indices.length == 0 ?
+                    Collections.singleton(ALL_INDICES) : new HashSet<String>(Arrays.asList(indices));
+            this.bytes = bytes;
+            this.hash = 31 * requestClass.hashCode() + Arrays.hashCode(bytes);
+        }
+
+        boolean isOnAll() {
+            return indices.contains(ALL_INDICES);
+        }
+
+        boolean isOnAny(Collection<String> written) {
+            if (isOnAll()) {
+                return true;
+            }
+            for (String index : written) {
+                if (indices.contains(index)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key that = (Key) o;
+            return requestClass.equals(that.requestClass) && Arrays.equals(bytes, that.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
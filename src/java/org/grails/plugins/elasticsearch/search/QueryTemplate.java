@@ -0,0 +1,214 @@
+/*
+ * Copyright 2002-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.grails.plugins.elasticsearch.search;
+
+import groovy.lang.Closure;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.groovy.common.xcontent.GXContentBuilder;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A query compiled once to JSON, with named placeholders bound to values on each search.
+ * <p/>
+ * Placeholders are written <code>{{name}}</code> in the string values of the query. A placeholder making up a whole
+ * string value is replaced by the JSON value of its parameter (string, number, boolean, list, map...), a placeholder
+ * within a string value is replaced by the text of its parameter.
+ * <pre>
+ * static final QueryTemplate BY_MESSAGE = QueryTemplate.compile {
+ *     bool {
+ *         must { term(message: '{{message}}') }
+ *         must { range { date(gte: '{{since}}') } }
+ *     }
+ * }
+ * Tweet.search(BY_MESSAGE.bind(message: 'grails', since: '2013-01-01'))
+ * </pre>
+ */
+public class QueryTemplate {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{(\\w+)\\}\\}");
+
+    /**
+     * Literal parts of the query, in UTF-8: one more than the placeholders.
+     */
+    private final byte[][] literals;
+
+    /**
+     * Parameter name of each placeholder.
+     */
+    private final String[] names;
+
+    /**
+     * Whether each placeholder makes up a whole string value, its quotes being left out of the literals.
+     */
+    private final boolean[] values;
+
+    private QueryTemplate(List<byte[]> literals, List<String> names, List<Boolean> values) {
+        this.literals = literals.toArray(new byte[literals.size()][]);
+        this.names = names.toArray(new String[names.size()]);
+        this.values = new boolean[values.size()];
+        for (int i = 0; i < this.values.length; i++) {
+            this.values[i] = values.get(i);
+        }
+    }
+
+    /**
+     * Compiles a query written with the Groovy Query DSL.
+     */
+    public static QueryTemplate compile(Closure query) {
+        return compile(new String(new GXContentBuilder().buildAsBytes(query), UTF_8));
+    }
+
+    /**
+     * Compiles a JSON query.
+     */
+    public static QueryTemplate compile(String json) {
+        List<byte[]> literals = new ArrayList<byte[]>();
+        List<String> names = new ArrayList<String>();
+        List<Boolean> values = new ArrayList<Boolean>();
+        Matcher matcher = PLACEHOLDER.matcher(json);
+        int literalStart = 0;
+        while (matcher.find()) {
+            boolean value = matcher.start() > 0 && json.charAt(matcher.start() - 1) == '"'
+                    && matcher.end() < json.length() && json.charAt(matcher.end()) == '"';
+            int literalEnd = value ? matcher.start() - 1 : matcher.start();
+            literals.add(json.substring(literalStart, literalEnd).getBytes(UTF_8));
+            names.add(matcher.group(1));
+            values.add(value);
+            literalStart = value ? matcher.end() + 1 : matcher.end();
+        }
+        literals.add(json.substring(literalStart).getBytes(UTF_8));
+        return new QueryTemplate(literals, names, values);
+    }
+
+    /**
+     * @return the names of the parameters of the query
+     */
+    public Set<String> getParameterNames() {
+        return new LinkedHashSet<String>(Arrays.asList(names));
+    }
+
+    /**
+     * Binds the placeholders of the query.
+     *
+     * @param parameters value of each placeholder
+     * @throws IllegalArgumentException if a placeholder has no value
+     */
+    public Bound bind(Map<String, ?> parameters) {
+        BytesStreamOutput out = new BytesStreamOutput();
+        try {
+            for (int i = 0; i < names.length; i++) {
+                out.write(literals[i]);
+                if (!parameters.containsKey(names[i])) {
+                    throw new IllegalArgumentException("No value for the query parameter [" + names[i] + "].");
+                }
+                Object parameter = parameters.get(names[i]);
+                if (values[i]) {
+                    writeValue(out, parameter);
+                } else {
+                    writeText(out, String.valueOf(parameter));
+                }
+            }
+            out.write(literals[literals.length - 1]);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to bind the query parameters", e);
+        }
+        return new Bound(out.bytes().toBytes());
+    }
+
+    private static void writeValue(BytesStreamOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.write("null".getBytes(UTF_8));
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.write(value.toString().getBytes(UTF_8));
+        } else if (value instanceof CharSequence) {
+            out.write('"');
+            writeText(out, value.toString());
+            out.write('"');
+        } else {
+            // Lists, maps, dates... are written by an XContentBuilder, as the field of an object which is then stripped
+            XContentBuilder builder = XContentFactory.jsonBuilder();
+            builder.startObject().field("v", value).endObject();
+            String json = builder.string();
+            out.write(json.substring(json.indexOf(':') + 1, json.length() - 1).getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * Writes text escaped for a JSON string.
+     */
+    private static void writeText(BytesStreamOutput out, String text) throws IOException {
+        StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    escaped.append("\\\"");
+                    break;
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        out.write(escaped.toString().getBytes(UTF_8));
+    }
+
+    /**
+     * A query template bound to its parameters, to be passed to the search methods in place of a query.
+     */
+    public static class Bound {
+        private final byte[] bytes;
+
+        Bound(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the JSON query, in UTF-8
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, UTF_8);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2002-2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.grails.plugins.elasticsearch.search;
+
+import groovy.lang.Closure;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Result of an asynchronous search or count, completed once the response is received and its hits are rebuilt.
+ * <p/>
+ * Besides the blocking {@link Future} methods, callbacks can be registered with {@link #onComplete(Closure)} and
+ * {@link #onError(Closure)}. They are called by the thread completing the future, or right away by the registering
+ * thread if the future is already complete.
+ */
+public class ResultFuture<T> implements Future<T> {
+
+    private static final Logger LOG = Logger.getLogger(ResultFuture.class);
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Guarded by this until done.
+     */
+    private T result;
+    private Throwable failure;
+    private boolean cancelled;
+    private boolean completed;
+    private final List<Closure> successCallbacks = new ArrayList<Closure>();
+    private final List<Closure> errorCallbacks = new ArrayList<Closure>();
+
+    /**
+     * Completes the future with its result.
+     *
+     * @return false if the future was already complete or cancelled
+     */
+    public boolean complete(T result) {
+        List<Closure> callbacks;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            this.result = result;
+            completed = true;
+            callbacks = new ArrayList<Closure>(successCallbacks);
+        }
+        done.countDown();
+        for (Closure callback : callbacks) {
+            notify(callback, result);
+        }
+        return true;
+    }
+
+    /**
+     * Completes the future with a failure.
+     *
+     * @return false if the future was already complete or cancelled
+     */
+    public boolean fail(Throwable failure) {
+        List<Closure> callbacks;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            this.failure = failure;
+            completed = true;
+            callbacks = new ArrayList<Closure>(errorCallbacks);
+        }
+        done.countDown();
+        for (Closure callback : callbacks) {
+            notify(callback, failure);
+        }
+        return true;
+    }
+
+    /**
+     * Registers a callback called with the result of the future.
+     *
+     * @return this future
+     */
+    public ResultFuture<T> onComplete(Closure callback) {
+        synchronized (this) {
+            if (!completed) {
+                successCallbacks.add(callback);
+                return this;
+            }
+        }
+        if (!cancelled && failure == null) {
+            notify(callback, result);
+        }
+        return this;
+    }
+
+    /**
+     * Registers a callback called with the exception which made the search fail.
+     *
+     * @return this future
+     */
+    public ResultFuture<T> onError(Closure callback) {
+        synchronized (this) {
+            if (!completed) {
+                errorCallbacks.add(callback);
+                return this;
+            }
+        }
+        if (failure != null) {
+            notify(callback, failure);
+        }
+        return this;
+    }
+
+    /**
+     * Cancels the future: the search is not interrupted, but its result is dropped and no callback is called.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            cancelled = true;
+            completed = true;
+        }
+        done.countDown();
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("No search response after " + timeout + " " + unit);
+        }
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+
+    private static void notify(Closure callback, Object argument) {
+        try {
+            callback.call(argument);
+        } catch (Throwable e) {
+            LOG.error("Search callback failed", e);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.grails.plugins.elasticsearch.conversion.marshall
+
+import grails.test.mixin.*
+
+import org.elasticsearch.common.xcontent.XContentHelper
+import org.grails.plugins.elasticsearch.ElasticSearchContextHolder
+import org.grails.plugins.elasticsearch.conversion.JSONDomainFactory
+import org.grails.plugins.elasticsearch.mapping.SearchableClassMappingConfigurator
+import org.junit.Before
+import org.junit.Test
+import test.Photo
+import test.SuperUser
+import test.Tag
+import test.Tweet
+import test.User
+
+@Mock([SuperUser, User, Tweet, Tag, Photo])
+public class StreamingMarshallerTest {
+
+    private JSONDomainFactory factory
+
+    @Before
+    public void setUp() {
+        def contextHolder = new ElasticSearchContextHolder(config: new ConfigObject())
+        def configurator = new SearchableClassMappingConfigurator(elasticSearchContext: contextHolder,
+                grailsApplication: grailsApplication, config: new ConfigObject())
+        configurator.buildMappings()
+        factory = new JSONDomainFactory(elasticSearchContextHolder: contextHolder, grailsApplication: grailsApplication)
+    }
+
+    /**
+     * @return the document of an instance, as written by the streaming marshaller or the default marshallers.
+     */
+    private Map marshall(instance, boolean streaming) {
+        factory.streaming = streaming
+        XContentHelper.convertToMap(factory.buildSource(instance), false).v2()
+    }
+
+    private User createUser() {
+        new User(firstname: 'Jane', lastname: 'Doe', password: 'secret', role: User.Role.ADMIN,
+                listOfThings: ['a', 'b']).save(validate: false)
+    }
+
+    @Test
+    public void testSimplePropertiesAndCollections() throws Exception {
+        User user = createUser()
+
+        Map document = marshall(user, true)
+        assert document == marshall(user, false)
+        assert 'Jane' == document.firstname
+        assert ['a', 'b'] == document.listOfThings
+        assert !document.containsKey('password')
+    }
+
+    @Test
+    public void testConverterAndReferences() throws Exception {
+        User user = createUser()
+        user.addToPhotos(new Photo(url: 'http://example.com/1.jpg').save(validate: false))
+        user.addToPhotos(new Photo(url: 'http://example.com/2.jpg').save(validate: false))
+        user.save(validate: false)
+
+        Map document = marshall(user, true)
+        assert document == marshall(user, false)
+        // References only hold the id of the referenced instance
+        assert document.photos*.keySet().flatten().unique() == ['id']
+    }
+
+    @Test
+    public void testComponentsWithCycleToTheRoot() throws Exception {
+        User user = createUser()
+        Tweet tweet = new Tweet(message: 'hello', user: user)
+        tweet.addToTags(new Tag(name: 'greeting').save(validate: false))
+        user.addToTweets(tweet)
+        user.save(validate: false)
+
+        Map document = marshall(user, true)
+        assert document == marshall(user, false)
+        Map component = document.tweets[0]
+        assert 'hello' == component.message
+        assert 'greeting' == component.tags[0].name
+        // The tweet refers back to the user being marshalled: root, tweets collection, then tweet
+        assert '../../..' == component.user.ref
+    }
+
+    @Test
+    public void testEmptyAndNullValues() throws Exception {
+        User user = createUser()
+        user.listOfThings = []
+        user.anArray = null
+
+        Map document = marshall(user, true)
+        assert document == marshall(user, false)
+    }
+}
@@ -0,0 +1,62 @@
+package org.grails.plugins.elasticsearch.conversion.unmarshall
+
+import org.codehaus.groovy.grails.commons.DefaultGrailsDomainClass
+import org.junit.Before
+import org.junit.Test
+import org.springframework.beans.SimpleTypeConverter
+import org.springframework.beans.TypeConverter
+import test.Product
+import test.User
+
+public class BindingPlanTest {
+
+    private TypeConverter typeConverter
+
+    @Before
+    public void setUp() {
+        typeConverter = new SimpleTypeConverter()
+    }
+
+    @Test
+    public void testValuesAreConvertedToThePropertyType() throws Exception {
+        BindingPlan plan = BindingPlan.compile(new DefaultGrailsDomainClass(Product))
+        Product product = new Product()
+
+        assert plan.bind(product, 'name', 'laptop', typeConverter)
+        assert 'laptop' == product.name
+        // Numbers are parsed as doubles or integers from the hit source
+        assert plan.bind(product, 'price', 12.5d, typeConverter)
+        assert 12.5f == product.price
+        assert plan.bind(product, 'price', '3', typeConverter)
+        assert 3f == product.price
+        assert plan.bind(product, 'description', null, typeConverter)
+        assert null == product.description
+    }
+
+    @Test
+    public void testEnumsAndCollections() throws Exception {
+        BindingPlan plan = BindingPlan.compile(new DefaultGrailsDomainClass(User))
+        User user = new User()
+
+        assert plan.bind(user, 'role', 'ADMIN', typeConverter)
+        assert User.Role.ADMIN == user.role
+        assert plan.bind(user, 'listOfThings', ['a', 'b'], typeConverter)
+        assert user.listOfThings instanceof ArrayList
+        assert ['a', 'b'] == user.listOfThings
+    }
+
+    @Test
+    public void testValuesLeftToTheDataBinding() throws Exception {
+        BindingPlan plan = BindingPlan.compile(new DefaultGrailsDomainClass(User))
+        User user = new User()
+
+        // Unknown property
+        assert !plan.bind(user, 'unknown', 'value', typeConverter)
+        // Nested objects are rebuilt by the unmarshaller
+        assert !plan.bind(user, 'role', [name: 'ADMIN'], typeConverter)
+        assert !plan.bind(user, 'listOfThings', [[name: 'a']], typeConverter)
+        // Values which cannot be converted
+        assert !plan.bind(user, 'role', 'NOT_A_ROLE', typeConverter)
+        assert User.Role.ORDINARY == user.role
+    }
+}
@@ -0,0 +1,81 @@
+package org.grails.plugins.elasticsearch.conversion.unmarshall
+
+import org.elasticsearch.search.SearchHit
+import org.junit.Before
+import org.junit.Test
+
+public class LazySearchResultsTest {
+
+    private CountingUnmarshaller unmarshaller
+    private List<SearchHit> hits
+
+    @Before
+    public void setUp() {
+        unmarshaller = new CountingUnmarshaller()
+        hits = ['1', '2', '3'].collect { id -> [getId: { id }] as SearchHit }
+    }
+
+    @Test
+    public void testInstancesAreRebuiltOnFirstAccess() throws Exception {
+        LazySearchResults results = new LazySearchResults(unmarshaller, hits)
+        assert 3 == results.size()
+        assert '2' == results.getHit(1).id
+        assert [] == unmarshaller.built
+        assert 0 == unmarshaller.prefetches
+
+        assert 'instance 2' == results[1]
+        assert results.isHydrated(1)
+        assert !results.isHydrated(0)
+        assert ['2'] == unmarshaller.built
+    }
+
+    @Test
+    public void testReferencesArePrefetchedOnceForThePage() throws Exception {
+        LazySearchResults results = new LazySearchResults(unmarshaller, hits)
+
+        assert ['instance 1', 'instance 2', 'instance 3'] == results.collect { it }
+        assert 1 == unmarshaller.prefetches
+        assert ['1', '2', '3'] == unmarshaller.prefetched
+        // All the instances share the context holding the prefetched references
+        assert 1 == unmarshaller.contexts.unique().size()
+    }
+
+    @Test
+    public void testInstancesAreRebuiltOnce() throws Exception {
+        LazySearchResults results = new LazySearchResults(unmarshaller, hits)
+
+        def first = results[0]
+        assert first.is(results[0])
+        assert ['1'] == unmarshaller.built
+    }
+
+    @Test(expected = UnsupportedOperationException)
+    public void testResultsAreReadOnly() throws Exception {
+        new LazySearchResults(unmarshaller, hits).add('instance 4')
+    }
+
+    /**
+     * Rebuilds each hit as a string, recording the calls.
+     */
+    static class CountingUnmarshaller extends DomainClassUnmarshaller {
+        int prefetches
+        List<String> prefetched = []
+        List<String> built = []
+        List<DefaultUnmarshallingContext> contexts = []
+
+        DefaultUnmarshallingContext createUnmarshallingContext() {
+            new DefaultUnmarshallingContext()
+        }
+
+        void prefetchReferences(Iterable<SearchHit> hits, DefaultUnmarshallingContext unmarshallingContext) {
+            prefetches++
+            hits.each { prefetched << it.id }
+        }
+
+        Object buildResult(SearchHit hit, DefaultUnmarshallingContext unmarshallingContext) {
+            built << hit.id
+            contexts << unmarshallingContext
+            "instance ${hit.id}".toString()
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.grails.plugins.elasticsearch.index
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+public class IndexRequestJournalTest {
+
+    private File journalFile
+    private IndexRequestJournal journal
+
+    @Before
+    public void setUp() {
+        journalFile = File.createTempFile('journal', '.bin')
+        journalFile.delete()
+        journal = open()
+    }
+
+    @After
+    public void tearDown() {
+        journal.close()
+        journalFile.delete()
+    }
+
+    private IndexRequestJournal open() {
+        IndexRequestJournal journal = new IndexRequestJournal()
+        journal.path = journalFile.path
+        journal.initialSize = 64
+        journal.open()
+        journal
+    }
+
+    @Test
+    public void testReplayOutstandingRequests() throws Exception {
+        journal.append('test.Photo', '1', false)
+        journal.append('test.Photo', '2', true)
+        journal.append('test.Photo', '3', false)
+        journal.acknowledge('test.Photo', '1')
+        journal.close()
+
+        journal = open()
+        def outstanding = journal.outstanding
+        assert ['2', '3'] == outstanding*.id
+        assert [true, false] == outstanding*.delete
+    }
+
+    @Test
+    public void testCompactionKeepsOutstandingRequests() throws Exception {
+        // Far more records than the initial 64 bytes, half of them acknowledged
+        for (int i = 0; i < 1000; i++) {
+            journal.append('test.Photo', i as String, false)
+            if (i % 2 == 0) {
+                journal.acknowledge('test.Photo', i as String)
+            }
+        }
+        journal.close()
+        assert !new File(journalFile.path + '.compact').exists()
+
+        journal = open()
+        assert (0..<1000).findAll { it % 2 == 1 }*.toString() == journal.outstanding*.id
+    }
+
+    @Test
+    public void testResetOnceEverythingIsAcknowledged() throws Exception {
+        journal.append('test.Photo', '1', false)
+        journal.acknowledge('test.Photo', '1')
+        journal.close()
+
+        journal = open()
+        assert journal.outstanding.isEmpty()
+    }
+
+    @Test
+    public void testRollbackKeepsRecordOfAnotherRequest() throws Exception {
+        // A committed request still in flight, then a transaction rolled back on the same entity
+        journal.append('test.Photo', '1', false)
+        journal.append('test.Photo', '1', false)
+        journal.rollback('test.Photo', '1')
+        assert ['1'] == journal.outstanding*.id
+
+        // A transaction alone on its entity
+        journal.append('test.Photo', '2', false)
+        journal.rollback('test.Photo', '2')
+        assert ['1'] == journal.outstanding*.id
+    }
+}
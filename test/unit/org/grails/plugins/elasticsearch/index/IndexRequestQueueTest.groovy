@@ -0,0 +1,259 @@
+package org.grails.plugins.elasticsearch.index
+
+import org.elasticsearch.action.bulk.BulkItemResponse
+import org.elasticsearch.action.bulk.BulkResponse
+import org.elasticsearch.action.delete.DeleteResponse
+import org.elasticsearch.action.index.IndexResponse
+import org.elasticsearch.common.bytes.BytesArray
+import org.elasticsearch.common.bytes.BytesReference
+import org.grails.plugins.elasticsearch.ElasticSearchContextHolder
+import org.grails.plugins.elasticsearch.conversion.JSONDomainFactory
+import org.grails.plugins.elasticsearch.exception.IndexException
+import org.grails.plugins.elasticsearch.mapping.SearchableClassMapping
+import org.grails.plugins.elasticsearch.search.QueryResultCache
+import org.grails.plugins.elasticsearch.search.QueryResultCacheTest
+import org.hibernate.LazyInitializationException
+import org.hibernate.Session
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+public class IndexRequestQueueTest {
+
+    private IndexRequestQueue queue
+
+    @Before
+    public void setUp() {
+        queue = new IndexRequestQueue()
+        queue.maxQueueSize = 1
+        queue.backpressurePolicy = IndexRequestQueue.BackpressurePolicy.BLOCK
+        queue.blockTimeout = 200
+        // A pending request fills the queue
+        queue.indexRequests.put('pending', new Object())
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutdown()
+    }
+
+    @Test(timeout = 5000L)
+    public void testBlockTimesOutWhileCircuitIsOpen() throws Exception {
+        queue.circuitOpen = true
+
+        long start = System.currentTimeMillis()
+        try {
+            queue.awaitCapacity()
+            assert false, 'Expected the producer to time out'
+        } catch (IndexException e) {
+            assert e.message.startsWith('Timed out after 200ms')
+        }
+        assert System.currentTimeMillis() - start >= 200
+        assert queue.indexRequests.size() == 1
+    }
+
+    @Test(timeout = 5000L)
+    public void testBlockedProducerResumesWhenRoomIsReleased() throws Exception {
+        queue.circuitOpen = true
+        queue.blockTimeout = 3000
+
+        Thread.start {
+            Thread.sleep(100)
+            synchronized (queue) {
+                queue.indexRequests.clear()
+                queue.notifyAll()
+            }
+        }
+        queue.awaitCapacity()
+        assert queue.indexRequests.isEmpty()
+    }
+
+    @Test(timeout = 5000L)
+    public void testFlushTimesOutWhileCircuitIsOpen() throws Exception {
+        queue.backpressurePolicy = IndexRequestQueue.BackpressurePolicy.FLUSH
+        queue.circuitOpen = true
+
+        long start = System.currentTimeMillis()
+        try {
+            queue.awaitCapacity()
+            assert false, 'Expected the producer to time out'
+        } catch (IndexException e) {
+            assert e.message.startsWith('Timed out after 200ms')
+        }
+        assert System.currentTimeMillis() - start >= 200
+        assert queue.indexRequests.size() == 1
+    }
+
+    @Test(timeout = 5000L)
+    public void testFlushingProducerResumesWhenRoomIsReleased() throws Exception {
+        queue.backpressurePolicy = IndexRequestQueue.BackpressurePolicy.FLUSH
+        queue.circuitOpen = true
+        queue.blockTimeout = 3000
+
+        Thread.start {
+            Thread.sleep(100)
+            synchronized (queue) {
+                queue.indexRequests.clear()
+                queue.notifyAll()
+            }
+        }
+        queue.awaitCapacity()
+        assert queue.indexRequests.isEmpty()
+    }
+
+    @Test
+    public void testDualWriteIsDoneOnceAllItemsSucceeded() throws Exception {
+        def batch = createBatch([] as Set)
+        batch.onResponse(bulkResponse(success(0, 'photos_v1'), failure(1, 'photos_v2', 'EsRejectedExecutionException[rejected]')))
+        assert batch.toIndex.size() == 1
+        assert !batch.complete
+
+        batch = createBatch([] as Set)
+        batch.onResponse(bulkResponse(success(0, 'photos_v1'), success(1, 'photos_v2')))
+        assert batch.toIndex.isEmpty()
+        assert batch.complete
+    }
+
+    @Test
+    public void testVersionConflictOnlyExpectedForVersionedWrite() throws Exception {
+        def conflict = 'VersionConflictEngineException[[photos_v2][0] [photo][1]: version conflict]'
+
+        def batch = createBatch([1] as Set)
+        batch.onResponse(bulkResponse(success(0, 'photos_v1'), failure(1, 'photos_v2', conflict)))
+        assert batch.toIndex.isEmpty()
+
+        batch = createBatch([1] as Set)
+        batch.onResponse(bulkResponse(failure(0, 'photos_v1', conflict), success(1, 'photos_v2')))
+        assert batch.toIndex.size() == 1
+    }
+
+    @Test
+    public void testRetryRejectedOnShutdownReleasesTheRequests() throws Exception {
+        def deadLetters = []
+        queue.deadLetterHandler = { clazz, id, delete, instance, attempts -> deadLetters << id } as DeadLetterHandler
+        queue.scheduler = Executors.newSingleThreadScheduledExecutor()
+        queue.scheduler.shutdown()
+        def batch = createBatch([] as Set)
+        queue.inFlightRequests = 1
+
+        batch.onFailure(new IllegalStateException('cluster down'))
+        assert batch.complete
+        assert batch.toIndex.isEmpty()
+        assert queue.inFlightRequests == 0
+        assert ['1'] == deadLetters
+    }
+
+    @Test
+    public void testPreviousRoutingIsForgottenOnceDeleted() throws Exception {
+        def key = new IndexRequestQueue.IndexEntityKey(queue, '1', Photo)
+        queue.previousRoutings.put(key, ['7'] as Set)
+
+        def batch = createBatch([] as Set)
+        batch.onResponse(bulkResponse(failure(0, 'photos_v1', 'EsRejectedExecutionException[rejected]', 'delete'), success(1, 'photos_v1')))
+        // Retried with the next indexing of the document
+        assert batch.toIndex.isEmpty()
+        assert queue.previousRoutings.containsKey(key)
+
+        batch = createBatch([] as Set)
+        batch.onResponse(bulkResponse(deleted(0, 'photos_v1'), success(1, 'photos_v1')))
+        assert batch.toIndex.isEmpty()
+        assert !queue.previousRoutings.containsKey(key)
+    }
+
+    @Test
+    public void testCachedSearchesOnAliasAreInvalidated() throws Exception {
+        QueryResultCache cache = new QueryResultCache()
+        cache.refreshInterval = 0
+        cache.get(new QueryResultCache.Key(String, ['photos'] as String[], [1] as byte[]), { new QueryResultCacheTest.Hits('hits') } as Callable)
+        assert cache.size() == 1
+        queue.queryResultCache = cache
+
+        createBatch([] as Set).onResponse(bulkResponse(success(0, 'photos_v1')))
+        assert cache.size() == 0
+    }
+
+    @Test
+    public void testWorkerMarshallsInstancesReadFromItsOwnSession() throws Exception {
+        // The album of the detached photo can only be loaded by the session of another thread
+        Photo detached = new Photo(id: 1L, album: new DetachedAlbum())
+        Photo reloaded = new Photo(id: 1L, album: new Album(title: 'holidays'))
+        Photo deleted = new Photo(id: 2L, album: new Album(title: 'deleted'))
+        queue.jsonDomainFactory = new AlbumTitleFactory()
+        Session session = [get: { Class clazz, Serializable id -> clazz == Photo && id == 1L ? reloaded : null }] as Session
+
+        List<BytesReference> documents = queue.marshallInSession([detached, deleted], session, true)
+        assert ['holidays', 'deleted'] == documents*.toUtf8()
+    }
+
+    /**
+     * A batch indexing one photo, with a mapping whose index is the 'photos' alias.
+     */
+    private createBatch(Set<Integer> versionedItems) {
+        SearchableClassMapping scm = new PhotoMapping()
+        queue.elasticSearchContextHolder = [
+                findMappedClassByElasticType: { String type -> Photo },
+                findMappingContextByElasticType: { String type -> scm }
+        ] as ElasticSearchContextHolder
+        // Retries are not run by these tests
+        queue.retryInitialDelay = 60000
+        def key = new IndexRequestQueue.IndexEntityKey(queue, '1', Photo)
+        new IndexRequestQueue.OperationBatch(queue, [(key): new Photo()], [] as Set, versionedItems, null, null)
+    }
+
+    private static BulkResponse bulkResponse(BulkItemResponse... items) {
+        new BulkResponse(items, 1L)
+    }
+
+    private static BulkItemResponse success(int itemId, String index) {
+        new BulkItemResponse(itemId, 'index', new IndexResponse(index, 'photo', '1', 2L))
+    }
+
+    private static BulkItemResponse failure(int itemId, String index, String message, String opType = 'index') {
+        new BulkItemResponse(itemId, opType, new BulkItemResponse.Failure(index, 'photo', '1', message))
+    }
+
+    private static BulkItemResponse deleted(int itemId, String index) {
+        new BulkItemResponse(itemId, 'delete', new DeleteResponse(index, 'photo', '1', 2L, false))
+    }
+
+    static class Photo {
+        Long id
+        Album album
+
+        def ident() {
+            id
+        }
+    }
+
+    static class Album {
+        String title
+    }
+
+    static class DetachedAlbum extends Album {
+        String getTitle() {
+            throw new LazyInitializationException('could not initialize proxy - no Session')
+        }
+    }
+
+    /**
+     * Marshalls a photo as the title of its album.
+     */
+    static class AlbumTitleFactory extends JSONDomainFactory {
+        BytesReference buildSource(instance) {
+            new BytesArray(instance.album.title)
+        }
+    }
+
+    static class PhotoMapping extends SearchableClassMapping {
+        PhotoMapping() {
+            super(null, null)
+        }
+
+        String getIndexName() {
+            'photos'
+        }
+    }
+}
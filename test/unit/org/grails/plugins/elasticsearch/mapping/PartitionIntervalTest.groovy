@@ -0,0 +1,34 @@
+package org.grails.plugins.elasticsearch.mapping
+
+import org.junit.Test
+
+import java.text.SimpleDateFormat
+
+public class PartitionIntervalTest {
+
+    private static Date utc(String date) {
+        SimpleDateFormat format = new SimpleDateFormat('yyyy-MM-dd HH:mm')
+        format.timeZone = TimeZone.getTimeZone('UTC')
+        format.parse(date)
+    }
+
+    @Test
+    public void testSuffix() throws Exception {
+        Date date = utc('2013-10-16 23:30')
+        assert '2013.10.16' == PartitionInterval.DAY.suffix(date)
+        assert '2013.10.14' == PartitionInterval.WEEK.suffix(date)
+        assert '2013.10' == PartitionInterval.MONTH.suffix(date)
+    }
+
+    @Test
+    public void testSuffixes() throws Exception {
+        assert ['2013.11', '2013.12', '2014.01'] == PartitionInterval.MONTH.suffixes(utc('2013-11-20 10:00'), utc('2014-01-02 08:00'))
+        assert ['2013.12.30', '2014.01.06'] == PartitionInterval.WEEK.suffixes(utc('2014-01-01 00:00'), utc('2014-01-06 00:00'))
+        assert [] == PartitionInterval.DAY.suffixes(utc('2014-01-02 00:00'), utc('2014-01-01 00:00'))
+    }
+
+    @Test(expected = IllegalArgumentException)
+    public void testUnknownInterval() throws Exception {
+        PartitionInterval.fromString('year')
+    }
+}
@@ -0,0 +1,180 @@
+package org.grails.plugins.elasticsearch.search
+
+import org.elasticsearch.common.io.stream.StreamInput
+import org.elasticsearch.common.io.stream.StreamOutput
+import org.elasticsearch.common.io.stream.Streamable
+import org.junit.Before
+import org.junit.Test
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+public class QueryResultCacheTest {
+
+    private QueryResultCache cache
+    private AtomicInteger loads
+
+    @Before
+    public void setUp() {
+        cache = new QueryResultCache()
+        cache.refreshInterval = 0
+        loads = new AtomicInteger()
+    }
+
+    private static QueryResultCache.Key key(int request, String... indices) {
+        new QueryResultCache.Key(String, indices, [request] as byte[])
+    }
+
+    private Callable loader(value) {
+        return { ->
+            loads.incrementAndGet()
+            new Hits(value)
+        } as Callable
+    }
+
+    @Test
+    public void testResponseIsCached() throws Exception {
+        assert ['first'] == cache.get(key(1, 'photos'), loader('first')).values
+        assert ['first'] == cache.get(key(1, 'photos'), loader('second')).values
+        assert 1 == loads.get()
+
+        assert ['other'] == cache.get(key(2, 'photos'), loader('other')).values
+        assert 2 == cache.size()
+    }
+
+    @Test
+    public void testExpiredResponseIsLoadedAgain() throws Exception {
+        cache.ttl = 50
+        cache.get(key(1, 'photos'), loader('first'))
+        Thread.sleep(100)
+        assert ['second'] == cache.get(key(1, 'photos'), loader('second')).values
+        assert 2 == loads.get()
+    }
+
+    @Test
+    public void testLeastRecentlyUsedResponseIsEvicted() throws Exception {
+        cache.maxSize = 2
+        cache.get(key(1, 'photos'), loader(1))
+        cache.get(key(2, 'photos'), loader(2))
+        cache.get(key(1, 'photos'), loader(1))
+        cache.get(key(3, 'photos'), loader(3))
+        assert 2 == cache.size()
+
+        cache.get(key(1, 'photos'), loader(1))
+        assert 3 == loads.get()
+        cache.get(key(2, 'photos'), loader(2))
+        assert 4 == loads.get()
+    }
+
+    @Test
+    public void testInvalidateWrittenIndices() throws Exception {
+        cache.get(key(1, 'photos'), loader(1))
+        cache.get(key(2, 'users'), loader(2))
+        cache.get(key(3, 'photos', 'users'), loader(3))
+        // Requests without indices are sent to all of them
+        cache.get(key(4), loader(4))
+        assert 4 == cache.size()
+
+        cache.invalidate(['photos'])
+        assert 1 == cache.size()
+        cache.get(key(2, 'users'), loader(2))
+        assert 4 == loads.get()
+
+        cache.invalidateAll()
+        assert 0 == cache.size()
+    }
+
+    @Test
+    public void testResponseLoadedBeforeRefreshIsNotCached() throws Exception {
+        cache.refreshInterval = 60000
+        cache.invalidate(['photos'])
+
+        cache.get(key(1, 'photos'), loader(1))
+        cache.get(key(2), loader(2))
+        cache.get(key(3, 'users'), loader(3))
+        // Only the response on an index which was not written is cached
+        assert 1 == cache.size()
+    }
+
+    @Test(timeout = 5000L)
+    public void testConcurrentLookupsShareOneLoad() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        Callable slowLoader = { ->
+            loads.incrementAndGet()
+            loading.countDown()
+            release.await()
+            new Hits('hits')
+        } as Callable
+
+        def results = Collections.synchronizedList([])
+        Thread first = Thread.start { results << cache.get(key(1, 'photos'), slowLoader).values }
+        loading.await()
+        Thread second = Thread.start { results << cache.get(key(1, 'photos'), slowLoader).values }
+        // Let the second lookup find the pending load before it completes
+        Thread.sleep(100)
+        release.countDown()
+        first.join()
+        second.join()
+
+        assert [['hits'], ['hits']] == results
+        assert 1 == loads.get()
+    }
+
+    @Test
+    public void testFailedLoadIsNotCached() throws Exception {
+        try {
+            cache.get(key(1, 'photos'), { -> throw new IllegalStateException('cluster down') } as Callable)
+            assert false, 'Expected the failure of the loader'
+        } catch (IllegalStateException e) {
+            assert 'cluster down' == e.message
+        }
+        assert 0 == cache.size()
+        assert ['hits'] == cache.get(key(1, 'photos'), loader('hits')).values
+    }
+
+    @Test
+    public void testEachLookupGetsItsOwnCopy() throws Exception {
+        Hits first = cache.get(key(1, 'photos'), loader('hits'))
+        first.values << 'changed by the caller'
+
+        Hits second = cache.get(key(1, 'photos'), loader('other'))
+        assert ['hits'] == second.values
+        assert !second.is(first)
+        assert 1 == loads.get()
+    }
+
+    @Test
+    public void testIndicesNoLongerStaleAreForgotten() throws Exception {
+        cache.refreshInterval = 10
+        cache.invalidate(['photos'])
+        Thread.sleep(50)
+        cache.invalidate(['users'])
+        assert ['users'] as Set == cache.staleUntil.keySet()
+    }
+
+    /**
+     * A response holding a list of values.
+     */
+    static class Hits implements Streamable {
+        List<String> values = []
+
+        Hits() {
+        }
+
+        Hits(value) {
+            values << value.toString()
+        }
+
+        void readFrom(StreamInput input) throws IOException {
+            int size = input.readVInt()
+            size.times { values << input.readString() }
+        }
+
+        void writeTo(StreamOutput out) throws IOException {
+            out.writeVInt(values.size())
+            values.each { out.writeString(it) }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.grails.plugins.elasticsearch.search
+
+import org.junit.Test
+
+public class QueryTemplateTest {
+
+    @Test
+    public void testBindWholeValues() throws Exception {
+        QueryTemplate template = QueryTemplate.compile('{"bool":{"must":[{"term":{"message":"{{message}}"}},{"range":{"likes":{"gte":"{{likes}}"}}}]}}')
+        assert ['message', 'likes'] as Set == template.parameterNames
+
+        String query = template.bind(message: 'grails', likes: 10).toString()
+        assert '{"bool":{"must":[{"term":{"message":"grails"}},{"range":{"likes":{"gte":10}}}]}}' == query
+    }
+
+    @Test
+    public void testBindWithinString() throws Exception {
+        QueryTemplate template = QueryTemplate.compile('{"query_string":{"query":"message:{{text}} AND user:{{user}}"}}')
+
+        String query = template.bind(text: 'say "hello"', user: 'mstein').toString()
+        assert '{"query_string":{"query":"message:say \\"hello\\" AND user:mstein"}}' == query
+    }
+
+    @Test
+    public void testBindNullAndRepeatedParameter() throws Exception {
+        QueryTemplate template = QueryTemplate.compile('{"a":"{{value}}","b":"{{value}}","c":"{{other}}"}')
+        assert ['value', 'other'] as Set == template.parameterNames
+
+        assert '{"a":true,"b":true,"c":null}' == template.bind(value: true, other: null).toString()
+    }
+
+    @Test(expected = IllegalArgumentException)
+    public void testMissingParameter() throws Exception {
+        QueryTemplate.compile('{"term":{"message":"{{message}}"}}').bind([:])
+    }
+}
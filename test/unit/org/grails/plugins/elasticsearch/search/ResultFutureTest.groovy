@@ -0,0 +1,119 @@
+package org.grails.plugins.elasticsearch.search
+
+import org.junit.Before
+import org.junit.Test
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+public class ResultFutureTest {
+
+    private ResultFuture<String> future
+    private List<String> calls
+
+    @Before
+    public void setUp() {
+        future = new ResultFuture<String>()
+        calls = Collections.synchronizedList([])
+    }
+
+    @Test
+    public void testCallbacksRegisteredBeforeCompletionAreCalledInOrder() throws Exception {
+        future.onComplete { calls << "first ${it}" }.onComplete { calls << "second ${it}" }
+        future.onError { calls << 'error' }
+        assert calls.isEmpty()
+
+        assert future.complete('hits')
+        assert ['first hits', 'second hits'] == calls*.toString()
+        assert 'hits' == future.get()
+    }
+
+    @Test
+    public void testCallbackRegisteredAfterCompletionIsCalledRightAway() throws Exception {
+        future.complete('hits')
+
+        future.onComplete { calls << it }
+        future.onError { calls << 'error' }
+        assert ['hits'] == calls
+    }
+
+    @Test
+    public void testFailureOnlyCallsErrorCallbacks() throws Exception {
+        def failure = new IllegalStateException('cluster down')
+        future.onComplete { calls << 'complete' }
+        future.onError { calls << it.message }
+
+        assert future.fail(failure)
+        future.onError { calls << "late ${it.message}" }
+        assert ['cluster down', 'late cluster down'] == calls*.toString()
+        try {
+            future.get()
+            assert false, 'Expected the failure of the search'
+        } catch (ExecutionException e) {
+            assert e.cause.is(failure)
+        }
+    }
+
+    @Test
+    public void testFutureIsCompletedOnce() throws Exception {
+        future.onComplete { calls << it }
+
+        assert future.complete('first')
+        assert !future.complete('second')
+        assert !future.fail(new IllegalStateException())
+        assert !future.cancel(true)
+        assert ['first'] == calls
+        assert 'first' == future.get()
+    }
+
+    @Test
+    public void testCancelledFutureDropsItsResult() throws Exception {
+        future.onComplete { calls << 'complete' }
+        future.onError { calls << 'error' }
+
+        assert future.cancel(false)
+        assert future.cancelled
+        assert future.done
+        assert !future.complete('hits')
+        assert !future.fail(new IllegalStateException())
+        future.onComplete { calls << 'late' }
+        assert calls.isEmpty()
+        try {
+            future.get()
+            assert false, 'Expected the cancellation'
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailingCallbackDoesNotPreventTheOthers() throws Exception {
+        future.onComplete { throw new IllegalStateException('callback failed') }
+        future.onComplete { calls << it }
+
+        assert future.complete('hits')
+        assert ['hits'] == calls
+    }
+
+    @Test(timeout = 5000L)
+    public void testGetWaitsForCompletionByAnotherThread() throws Exception {
+        try {
+            future.get(50, TimeUnit.MILLISECONDS)
+            assert false, 'Expected a timeout'
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        CountDownLatch called = new CountDownLatch(1)
+        future.onComplete { called.countDown() }
+        Thread.start {
+            Thread.sleep(50)
+            future.complete('hits')
+        }
+        assert 'hits' == future.get()
+        assert called.await(1, TimeUnit.SECONDS)
+    }
+}